@@ -0,0 +1,343 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Approximate forward-backward kernel for models with very many states, selected with the "beam" kernel.
+ *
+ * After the forward column of a position is computed, only the states whose forward log probability is within
+ * BEAM_KEY (in bits) of the best state are kept, and of those at most TOP_K_KEY states (if set). The next
+ * forward column is pushed from the surviving states only, and the backward pass and all counts only visit
+ * the surviving lattice, so a position costs O(survivors * out-degree) instead of O(number of transitions).
+ * The log alpha and the counts are those of the surviving lattice, i.e. slightly smaller than the exact ones.
+ *
+ * The forward push accumulates in linear space relative to the best state of the previous position, so every
+ * contribution of a surviving state is at least 2^-beam and cannot underflow; the beam must stay below about
+ * 1000 bits.
+ *
+ * The numbers of kept and pruned (position, state) cells are available from getNumKeptCells and
+ * getNumPrunedCells.
+ */
+public class BeamForwardBackward extends ForwardBackward {
+
+	/**
+	 * Width of the beam in bits, i.e. states more than 2^beam times less likely than the best state at a position
+	 * are pruned. Defaults to DEFAULT_BEAM.
+	 */
+	public static final String BEAM_KEY = "hmmem.forward_backward.beam";
+	public static final float DEFAULT_BEAM = 20.0f;
+	/**
+	 * Maximum number of states kept at a position, or 0 (the default) for no limit.
+	 */
+	public static final String TOP_K_KEY = "hmmem.forward_backward.top_k";
+
+	private final double beam;
+	private final int topK;
+
+	// Log forward and backward values, valid only for the surviving states of each position.
+	private double[] forwardMatrix = new double[0];
+	private double[] backwardMatrix = new double[0];
+
+	// The surviving states of position i are activeStates[activeOffsets[i] .. activeOffsets[i+1]).
+	private int[] activeStates = new int[0];
+	private int[] activeOffsets = new int[1];
+
+	// Linear forward sums of the states reached from the previous position, and which states those are.
+	private final double[] pushSums;
+	private final boolean[] pushed;
+	private final int[] pushedStates;
+
+	private final double[] scratch;
+	private final double[] selectScratch;
+	// Log P(nextObs|nextState) + Backward(i+1, nextState) for the surviving states of i+1, log(0) otherwise.
+	private final double[] nextColumn;
+
+	private long numKeptCells = 0;
+	private long numPrunedCells = 0;
+
+	public BeamForwardBackward(HmmModel model, double beam, int topK) {
+		super(model);
+
+		this.beam = beam;
+		this.topK = topK;
+
+		pushSums = new double[numStates];
+		pushed = new boolean[numStates];
+		pushedStates = new int[numStates];
+		scratch = new double[Math.max(graph.getMaxOutDegree(), 1)];
+		selectScratch = new double[numStates];
+		nextColumn = new double[numStates];
+		Arrays.fill(nextColumn, Double.NEGATIVE_INFINITY);
+	}
+
+	@Override
+	public double accumulate(int[] observations, ExpectedCounts counts) {
+		int numObs = observations.length;
+		ensureCapacity(numObs);
+
+		double logAlpha = calculateForwardMatrix(observations);
+		if (logAlpha == Double.NEGATIVE_INFINITY) {
+			return logAlpha;
+		}
+
+		calculateBackwardMatrix(observations);
+
+		accumulateStartCounts(logAlpha, counts);
+		accumulateTransitionCounts(observations, logAlpha, counts);
+		accumulateEmissionCounts(observations, logAlpha, counts);
+
+		counts.addLogAlpha(logAlpha);
+
+		return logAlpha;
+	}
+
+	@Override
+	public long getNumKeptCells() {
+		return numKeptCells;
+	}
+
+	@Override
+	public long getNumPrunedCells() {
+		return numPrunedCells;
+	}
+
+	/**
+	 * Fills in the pruned forward lattice and returns the log alpha of the surviving lattice, or log(0) if no
+	 * state survives a position.
+	 */
+	private double calculateForwardMatrix(int[] observations) {
+		double[] startLogProbs = model.getStartLogProbs();
+		double[] emisLogProbs = model.getEmisLogProbs();
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorProbs = graph.getSuccessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] indexEmisLogProbs = emissionIndex.getEmisLogProbs();
+
+		// P(state|#) * P(firstObservation|state)
+		int numPushed = 0;
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			double logProb = startLogProbs[state] + indexEmisLogProbs[entry];
+			if (logProb != Double.NEGATIVE_INFINITY) {
+				forwardMatrix[state] = logProb;
+				pushedStates[numPushed++] = state;
+			}
+		}
+		double maxLogProb = prune(0, numPushed);
+
+		for (int i = 1; i < observations.length; i++) {
+			if (maxLogProb == Double.NEGATIVE_INFINITY) {
+				return maxLogProb;
+			}
+
+			int prevOffset = (i - 1) * numStates;
+			int offset = i * numStates;
+			int emisOffset = observations[i] * numStates;
+
+			// Forward(i-1, prevState) * P(state|prevState), relative to the best state at i-1.
+			numPushed = 0;
+			for (int active = activeOffsets[i - 1]; active < activeOffsets[i]; active++) {
+				int prevState = activeStates[active];
+				double prevProb = LogMath.exp2(forwardMatrix[prevOffset + prevState] - maxLogProb);
+
+				for (int edge = successorOffsets[prevState]; edge < successorOffsets[prevState + 1]; edge++) {
+					int state = successorStates[edge];
+					if (emisLogProbs[emisOffset + state] == Double.NEGATIVE_INFINITY) {
+						continue;
+					}
+
+					if (!pushed[state]) {
+						pushed[state] = true;
+						pushedStates[numPushed++] = state;
+					}
+					pushSums[state] += prevProb * successorProbs[edge];
+				}
+			}
+
+			int numReached = 0;
+			for (int j = 0; j < numPushed; j++) {
+				int state = pushedStates[j];
+				if (pushSums[state] > 0.0) {
+					forwardMatrix[offset + state] = maxLogProb + LogMath.log2(pushSums[state])
+							+ emisLogProbs[emisOffset + state];
+					pushedStates[numReached++] = state;
+				}
+
+				pushSums[state] = 0.0;
+				pushed[state] = false;
+			}
+
+			maxLogProb = prune(i, numReached);
+		}
+
+		int lastOffset = (observations.length - 1) * numStates;
+		int begin = activeOffsets[observations.length - 1];
+		int end = activeOffsets[observations.length];
+		for (int active = begin; active < end; active++) {
+			selectScratch[active - begin] = forwardMatrix[lastOffset + activeStates[active]];
+		}
+
+		return LogMath.log2SumExp2(selectScratch, 0, end - begin);
+	}
+
+	/**
+	 * Keeps the states of pushedStates[0..numCandidates) whose forward value at position i is within the beam of
+	 * the best one, and at most topK of them, as the surviving states of position i. Returns the best forward
+	 * value, or log(0) if there are no candidates.
+	 */
+	private double prune(int i, int numCandidates) {
+		int offset = i * numStates;
+
+		double maxLogProb = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < numCandidates; j++) {
+			maxLogProb = Math.max(maxLogProb, forwardMatrix[offset + pushedStates[j]]);
+		}
+
+		double threshold = maxLogProb - beam;
+		if (topK > 0 && numCandidates > topK) {
+			for (int j = 0; j < numCandidates; j++) {
+				selectScratch[j] = forwardMatrix[offset + pushedStates[j]];
+			}
+			Arrays.sort(selectScratch, 0, numCandidates);
+			threshold = Math.max(threshold, selectScratch[numCandidates - topK]);
+		}
+
+		int numActive = activeOffsets[i];
+		int maxActive = topK > 0 ? numActive + topK : Integer.MAX_VALUE;
+		for (int j = 0; j < numCandidates && numActive < maxActive; j++) {
+			int state = pushedStates[j];
+			if (forwardMatrix[offset + state] >= threshold) {
+				activeStates[numActive++] = state;
+			}
+		}
+
+		int numKept = numActive - activeOffsets[i];
+		numKeptCells += numKept;
+		numPrunedCells += numCandidates - numKept;
+		activeOffsets[i + 1] = numActive;
+
+		return maxLogProb;
+	}
+
+	/**
+	 * Fills in the backward values of the surviving states, summing only over surviving successors.
+	 */
+	private void calculateBackwardMatrix(int[] observations) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorLogProbs = graph.getSuccessorLogProbs();
+
+		int last = observations.length - 1;
+		for (int active = activeOffsets[last]; active < activeOffsets[last + 1]; active++) {
+			backwardMatrix[last * numStates + activeStates[active]] = 0.0;
+		}
+
+		for (int i = last - 1; i >= 0; i--) {
+			int offset = i * numStates;
+			fillNextColumn(observations[i + 1], i + 1);
+
+			for (int active = activeOffsets[i]; active < activeOffsets[i + 1]; active++) {
+				int state = activeStates[active];
+
+				// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
+				int begin = successorOffsets[state];
+				int end = successorOffsets[state + 1];
+				for (int edge = begin; edge < end; edge++) {
+					scratch[edge - begin] = successorLogProbs[edge] + nextColumn[successorStates[edge]];
+				}
+
+				backwardMatrix[offset + state] = LogMath.log2SumExp2(scratch, 0, end - begin);
+			}
+
+			clearNextColumn(i + 1);
+		}
+	}
+
+	private void accumulateStartCounts(double logAlpha, ExpectedCounts counts) {
+		double[] startCounts = counts.getStartCounts();
+
+		for (int active = activeOffsets[0]; active < activeOffsets[1]; active++) {
+			int state = activeStates[active];
+			startCounts[state] += LogMath.exp2(forwardMatrix[state] + backwardMatrix[state] - logAlpha);
+		}
+	}
+
+	private void accumulateTransitionCounts(int[] observations, double logAlpha, ExpectedCounts counts) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorLogProbs = graph.getSuccessorLogProbs();
+		double[] transCounts = counts.getTransCounts();
+
+		for (int i = 0; i < observations.length - 1; i++) {
+			int offset = i * numStates;
+			fillNextColumn(observations[i + 1], i + 1);
+
+			for (int active = activeOffsets[i]; active < activeOffsets[i + 1]; active++) {
+				int fromState = activeStates[active];
+				double forwardLogProb = forwardMatrix[offset + fromState] - logAlpha;
+
+				int transOffset = fromState * numStates;
+				for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+					int toState = successorStates[edge];
+					if (nextColumn[toState] != Double.NEGATIVE_INFINITY) {
+						transCounts[transOffset + toState] += LogMath.exp2(forwardLogProb + successorLogProbs[edge]
+								+ nextColumn[toState]);
+					}
+				}
+			}
+
+			clearNextColumn(i + 1);
+		}
+	}
+
+	private void accumulateEmissionCounts(int[] observations, double logAlpha, ExpectedCounts counts) {
+		double[] emisCounts = counts.getEmisCounts();
+
+		for (int i = 0; i < observations.length; i++) {
+			int offset = i * numStates;
+			int emisOffset = observations[i] * numStates;
+			counts.markToken(observations[i]);
+
+			for (int active = activeOffsets[i]; active < activeOffsets[i + 1]; active++) {
+				int state = activeStates[active];
+				emisCounts[emisOffset + state] += LogMath.exp2(forwardMatrix[offset + state]
+						+ backwardMatrix[offset + state] - logAlpha);
+			}
+		}
+	}
+
+	/**
+	 * Sets nextColumn[nextState] = log P(nextObs|nextState) + Backward(next, nextState) for the surviving states
+	 * of position next.
+	 */
+	private void fillNextColumn(int nextObs, int next) {
+		double[] emisLogProbs = model.getEmisLogProbs();
+		int emisOffset = nextObs * numStates;
+		int nextOffset = next * numStates;
+
+		for (int active = activeOffsets[next]; active < activeOffsets[next + 1]; active++) {
+			int nextState = activeStates[active];
+			nextColumn[nextState] = emisLogProbs[emisOffset + nextState] + backwardMatrix[nextOffset + nextState];
+		}
+	}
+
+	private void clearNextColumn(int next) {
+		for (int active = activeOffsets[next]; active < activeOffsets[next + 1]; active++) {
+			nextColumn[activeStates[active]] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	private void ensureCapacity(int numObs) {
+		if (activeOffsets.length < numObs + 1) {
+			forwardMatrix = new double[numObs * numStates];
+			backwardMatrix = new double[numObs * numStates];
+			activeStates = new int[numObs * numStates];
+			activeOffsets = new int[numObs + 1];
+		}
+	}
+
+}
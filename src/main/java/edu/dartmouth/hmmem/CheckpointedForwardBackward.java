@@ -0,0 +1,366 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Forward-backward kernel for very long observation sequences that needs O(N * sqrt(T)) memory instead of
+ * O(N * T), selected with the "checkpointed" kernel.
+ *
+ * The arithmetic is that of ScaledForwardBackward. The first forward pass keeps only two columns, and saves
+ * the scaled column and scale of every sqrt(T)-th position as a checkpoint. The backward sweep then goes over
+ * the segments between checkpoints from last to first: it recomputes the forward columns of the segment from
+ * its checkpoint, and runs the backward recursion and accumulates all counts over the segment with two rolling
+ * backward columns. Every forward column is therefore computed twice, in exchange for a memory footprint that
+ * grows with the square root of the sequence length.
+ *
+ * A forward column that sums to 0 is recomputed in log space from the previous one, without ever allocating
+ * matrices over the whole sequence. If it is 0 there too, the sequence has probability 0 and nothing is
+ * accumulated; otherwise the column underflowed, which only happens when a single step has a probability below
+ * 2^-1022, and an IllegalStateException asks for the "log" kernel.
+ */
+public class CheckpointedForwardBackward extends ForwardBackward {
+
+	private final LogForwardBackward logForwardBackward;
+
+	// Scaled forward columns and scales of the first position of every segment.
+	private double[] checkpoints = new double[0];
+	private double[] checkpointScales = new double[0];
+
+	// Forward columns and scales of the segment being swept, and the columns of the first forward pass.
+	private double[] segmentForward = new double[0];
+	private double[] segmentScales = new double[0];
+	private final double[] rollingForward;
+
+	// Backward columns of positions i and i+1, valid for the states emitting their observations.
+	private double[] backwardColumn;
+	private double[] nextBackwardColumn;
+
+	// Scratch column holding P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1) for the states emitting
+	// nextObs, and 0 for all other states between uses.
+	private final double[] nextColumn;
+
+	public CheckpointedForwardBackward(HmmModel model) {
+		super(model);
+
+		logForwardBackward = new LogForwardBackward(model);
+		rollingForward = new double[2 * numStates];
+		backwardColumn = new double[numStates];
+		nextBackwardColumn = new double[numStates];
+		nextColumn = new double[numStates];
+	}
+
+	/**
+	 * The posteriors of every position take O(N * T) memory anyway, so they are computed by LogForwardBackward.
+	 */
+	@Override
+	public double posteriors(int[] observations, double[] posteriors) {
+		return logForwardBackward.posteriors(observations, posteriors);
+	}
+
+	@Override
+	public double accumulate(int[] observations, ExpectedCounts counts) {
+		int numObs = observations.length;
+		int segmentLength = (int) Math.ceil(Math.sqrt(numObs));
+		int numSegments = (numObs + segmentLength - 1) / segmentLength;
+		ensureCapacity(numSegments, segmentLength);
+
+		// First forward pass: alpha and checkpoints.
+		double logAlpha = 0.0;
+		for (int i = 0; i < numObs; i++) {
+			int offset = (i % 2) * numStates;
+			double scale = i == 0 ? calculateStartColumn(rollingForward, offset, observations[0])
+					: calculateForwardColumn(rollingForward, numStates - offset, rollingForward, offset, observations[i]);
+			if (scale == 0.0) {
+				if (logColumnSum(observations, i) == Double.NEGATIVE_INFINITY) {
+					return Double.NEGATIVE_INFINITY;
+				}
+				throw new IllegalStateException("The forward column of position " + i + " of a sequence of " + numObs
+						+ " tokens underflows in " + getClass().getSimpleName() + "; set " + KERNEL_KEY + " to \""
+						+ LOG_KERNEL + "\".");
+			}
+
+			logAlpha += LogMath.log2(scale);
+
+			if (i % segmentLength == 0) {
+				int segment = i / segmentLength;
+				System.arraycopy(rollingForward, offset, checkpoints, segment * numStates, numStates);
+				checkpointScales[segment] = scale;
+			}
+		}
+
+		// Backward sweep over the segments, recomputing the forward columns of each one from its checkpoint.
+		double nextScale = 0.0;
+		for (int segment = numSegments - 1; segment >= 0; segment--) {
+			int first = segment * segmentLength;
+			int last = Math.min(first + segmentLength, numObs) - 1;
+
+			System.arraycopy(checkpoints, segment * numStates, segmentForward, 0, numStates);
+			segmentScales[0] = checkpointScales[segment];
+			for (int i = first + 1; i <= last; i++) {
+				int offset = (i - first) * numStates;
+				segmentScales[i - first] = calculateForwardColumn(segmentForward, offset - numStates, segmentForward,
+						offset, observations[i]);
+			}
+
+			for (int i = last; i >= first; i--) {
+				int offset = (i - first) * numStates;
+
+				if (i == numObs - 1) {
+					initializeLastBackwardColumn(observations[i]);
+				} else {
+					fillNextColumn(observations[i + 1], nextScale);
+					calculateBackwardColumn(observations[i]);
+					accumulateTransitionCounts(offset, observations[i], counts);
+					clearNextColumn(observations[i + 1]);
+				}
+
+				accumulateEmissionCounts(offset, observations[i], counts);
+				if (i == 0) {
+					accumulateStartCounts(observations[0], counts);
+				}
+
+				double[] temp = nextBackwardColumn;
+				nextBackwardColumn = backwardColumn;
+				backwardColumn = temp;
+				nextScale = segmentScales[i - first];
+			}
+		}
+
+		counts.addLogAlpha(logAlpha);
+
+		return logAlpha;
+	}
+
+	/**
+	 * Fills in the scaled forward column of the first position at the given offset and returns its scale, or 0 if
+	 * the column sums to 0.
+	 */
+	private double calculateStartColumn(double[] column, int offset, int obs) {
+		double[] startProbs = model.getStartProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisProbs = emissionIndex.getEmisProbs();
+
+		// P(state|#) * P(firstObservation|state)
+		Arrays.fill(column, offset, offset + numStates, 0.0);
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+			column[offset + state] = startProbs[state] * emisProbs[entry];
+		}
+
+		return scaleColumn(column, offset, obs);
+	}
+
+	/**
+	 * Fills in the scaled forward column at the given offset from the previous one and returns its scale, or 0 if
+	 * the column sums to 0.
+	 */
+	private double calculateForwardColumn(double[] prevColumn, int prevOffset, double[] column, int offset, int obs) {
+		int[] predecessorOffsets = graph.getPredecessorOffsets();
+		int[] predecessorStates = graph.getPredecessorStates();
+		double[] predecessorProbs = graph.getPredecessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisProbs = emissionIndex.getEmisProbs();
+
+		Arrays.fill(column, offset, offset + numStates, 0.0);
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+
+			// Forward(i-1, prevState) * P(state|prevState)
+			double sum = 0.0;
+			for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+				sum += prevColumn[prevOffset + predecessorStates[edge]] * predecessorProbs[edge];
+			}
+
+			column[offset + state] = sum * emisProbs[entry];
+		}
+
+		return scaleColumn(column, offset, obs);
+	}
+
+	/**
+	 * Returns the log of the sum of the unscaled forward column of position i, relative to the scaled column of
+	 * position i-1 in rollingForward, computed in log space so that it is Double.NEGATIVE_INFINITY only if the
+	 * column is really 0.
+	 */
+	private double logColumnSum(int[] observations, int i) {
+		double[] startLogProbs = model.getStartLogProbs();
+		int[] predecessorOffsets = graph.getPredecessorOffsets();
+		int[] predecessorStates = graph.getPredecessorStates();
+		double[] predecessorLogProbs = graph.getPredecessorLogProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisLogProbs = emissionIndex.getEmisLogProbs();
+		int prevOffset = (i + 1) % 2 * numStates;
+		int obs = observations[i];
+
+		double logSum = LogMath.LOG_ZERO;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+
+			if (i == 0) {
+				logSum = LogMath.log2Add(logSum, startLogProbs[state] + emisLogProbs[entry]);
+				continue;
+			}
+
+			for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+				double prevForward = rollingForward[prevOffset + predecessorStates[edge]];
+				if (prevForward > 0.0) {
+					logSum = LogMath.log2Add(logSum, LogMath.log2(prevForward) + predecessorLogProbs[edge]
+							+ emisLogProbs[entry]);
+				}
+			}
+		}
+
+		return logSum;
+	}
+
+	private void initializeLastBackwardColumn(int obs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			backwardColumn[emittingStates[entry]] = 1.0;
+		}
+	}
+
+	/**
+	 * Fills in the backward column of position i, scaled by c(i+1), from nextColumn.
+	 */
+	private void calculateBackwardColumn(int obs) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorProbs = graph.getSuccessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+
+			// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1)
+			double sum = 0.0;
+			for (int edge = successorOffsets[state]; edge < successorOffsets[state + 1]; edge++) {
+				sum += successorProbs[edge] * nextColumn[successorStates[edge]];
+			}
+
+			backwardColumn[state] = sum;
+		}
+	}
+
+	private void accumulateStartCounts(int obs, ExpectedCounts counts) {
+		double[] startCounts = counts.getStartCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		// Position 0 is the first position of the first segment.
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+			startCounts[state] += segmentForward[state] * backwardColumn[state];
+		}
+	}
+
+	/**
+	 * Accumulates the transition counts from position i, whose forward column is at the given segment offset, to
+	 * position i+1.
+	 */
+	private void accumulateTransitionCounts(int offset, int obs, ExpectedCounts counts) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorProbs = graph.getSuccessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] transCounts = counts.getTransCounts();
+
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int fromState = emittingStates[entry];
+			double forwardProb = segmentForward[offset + fromState];
+			if (forwardProb == 0.0) {
+				continue;
+			}
+
+			int transOffset = fromState * numStates;
+			for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+				int toState = successorStates[edge];
+				transCounts[transOffset + toState] += forwardProb * successorProbs[edge] * nextColumn[toState];
+			}
+		}
+	}
+
+	private void accumulateEmissionCounts(int offset, int obs, ExpectedCounts counts) {
+		double[] emisCounts = counts.getEmisCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		int emisOffset = obs * numStates;
+		counts.markToken(obs);
+
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			int state = emittingStates[entry];
+			emisCounts[emisOffset + state] += segmentForward[offset + state] * backwardColumn[state];
+		}
+	}
+
+	/**
+	 * Sets nextColumn[nextState] = P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1) for the states
+	 * emitting nextObs.
+	 */
+	private void fillNextColumn(int nextObs, double nextScale) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisProbs = emissionIndex.getEmisProbs();
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			int nextState = emittingStates[entry];
+			nextColumn[nextState] = emisProbs[entry] * nextBackwardColumn[nextState] / nextScale;
+		}
+	}
+
+	private void clearNextColumn(int nextObs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			nextColumn[emittingStates[entry]] = 0.0;
+		}
+	}
+
+	/**
+	 * Divides the column at the given offset, whose non-zero cells are those of the states emitting obs, by its
+	 * sum and returns the sum, or 0 if the sum is 0.
+	 */
+	private double scaleColumn(double[] column, int offset, int obs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		double sum = 0.0;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			sum += column[offset + emittingStates[entry]];
+		}
+
+		if (sum == 0.0) {
+			return 0.0;
+		}
+
+		double inverse = 1.0 / sum;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			column[offset + emittingStates[entry]] *= inverse;
+		}
+
+		return sum;
+	}
+
+	private void ensureCapacity(int numSegments, int segmentLength) {
+		if (checkpointScales.length < numSegments) {
+			checkpoints = new double[numSegments * numStates];
+			checkpointScales = new double[numSegments];
+		}
+
+		if (segmentScales.length < segmentLength) {
+			segmentForward = new double[segmentLength * numStates];
+			segmentScales = new double[segmentLength];
+		}
+	}
+
+}
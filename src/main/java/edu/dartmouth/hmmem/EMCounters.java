@@ -0,0 +1,36 @@
+package edu.dartmouth.hmmem;
+
+/**
+ * Hadoop counters of the EM and Viterbi jobs. The *_NANOS counters sum System.nanoTime() differences, so they
+ * show where the time of an iteration goes without any per-record logging (see ExpectationMapper.TRACE_KEY for
+ * that). When a job trains several random restarts, ZERO_PROBABILITY_SEQUENCES, FORWARD_BACKWARD_NANOS and the
+ * beam counters add up over the models.
+ */
+public enum EMCounters {
+
+	// E step (ExpectationMapper).
+	SEQUENCES,
+	TOKENS,
+	EMPTY_SEQUENCES,
+	UNKNOWN_TOKEN_SEQUENCES,
+	ZERO_PROBABILITY_SEQUENCES,
+	FORWARD_BACKWARD_NANOS,
+	COLLECT_NANOS,
+	EMITTED_RECORDS,
+	BEAM_KEPT_CELLS,
+	BEAM_PRUNED_CELLS,
+
+	// M step (MaximizationReducer).
+	REDUCED_KEYS,
+	NORMALIZED_GROUPS,
+	SPLIT_GROUPS,
+	OUTPUT_PARAMETERS,
+	MAXIMIZATION_NANOS,
+
+	// Viterbi (ViterbiMapReduce.ViterbiMapper) and posterior decoding (PosteriorDecodingMapper), which also counts
+	// FORWARD_BACKWARD_NANOS.
+	TAGGED_SEQUENCES,
+	TAGGED_TOKENS,
+	VITERBI_NANOS
+
+}
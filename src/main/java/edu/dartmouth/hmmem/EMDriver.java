@@ -5,24 +5,41 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.apache.hadoop.mapred.lib.MultithreadedMapRunner;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +48,94 @@ public class EMDriver {
 	private static final Logger logger = LoggerFactory.getLogger(EMDriver.class);
 
 	public static final String EM_MODEL_PARAMS_FILE_NAME = "em_model_params.txt";
+	// Output directory of the EM job of an iteration, in the output directory.
+	public static final String EM_JOB_OUTPUT_DIR_PREFIX = "_em-";
+	/**
+	 * If true, the EM iterations run in this process with LocalEMEngine instead of as MapReduce jobs, which
+	 * avoids the job overhead of every iteration for corpora that fit in memory. The output directories are the
+	 * same. Viterbi tagging still runs as a job.
+	 */
+	public static final String LOCAL_KEY = "hmmem.local";
+	/**
+	 * If true, a first job converts the input corpus into a SequenceFile of token id sequences (see
+	 * TokenizerMapper) in the "tokenized" directory of the output directory, which every EM iteration, random seed
+	 * and the Viterbi job then read instead of the text corpus. The vocabulary, one token per line in id order, is
+	 * written next to it.
+	 */
+	public static final String TOKENIZED_CORPUS_KEY = "hmmem.tokenized_corpus";
+	public static final String TOKENIZED_CORPUS_DIR_NAME = "tokenized";
+	public static final String VOCABULARY_FILE_NAME = "_vocabulary.txt";
+	/**
+	 * Number of EM iterations after which the random restarts race (at least 2; 0, the default, disables racing).
+	 * From then on, after every iteration, a seed is stopped if its total log alpha, extrapolated over
+	 * RACING_HORIZON_KEY more iterations at the gain of its last iteration, is still below the best total log
+	 * alpha of any seed. The gains of EM mostly shrink as it converges, so such a seed is unlikely to ever
+	 * overtake the leader. Stopped seeds are not Viterbi tagged.
+	 */
+	public static final String RACING_WARMUP_KEY = "hmmem.racing.warmup_iterations";
+	/**
+	 * Number of further iterations a seed is given to catch up with the leader. Defaults to 10.
+	 */
+	public static final String RACING_HORIZON_KEY = "hmmem.racing.horizon_iterations";
+	/**
+	 * If true, the EM iterations of every random seed are accelerated with SquaremAccelerator: every two EM
+	 * iterations the model is extrapolated along their updates, and the next iteration runs from the extrapolated
+	 * model, which is written to the "extrapolated" directory of the iteration directory. If the total log alpha of
+	 * the extrapolated model (as reported by that iteration) is below the previous iteration's, the iteration is
+	 * discarded and EM resumes from the plain EM model. The directory of a discarded iteration i is renamed to
+	 * "i-rejected", so that every iteration directory left holds a model of the chain. Off by default.
+	 */
+	public static final String SQUAREM_KEY = "hmmem.squarem";
+	public static final String REJECTED_ITERATION_DIR_SUFFIX = "-rejected";
+	/**
+	 * If true, EM runs online (see OnlineEM): every iteration is a pass over the corpus in mini-batches, and the
+	 * model of each seed is updated after every mini-batch from running statistics that blend the expected counts
+	 * of the mini-batches with a decaying step size. With LOCAL_KEY, the mini-batches are runs of sequences of the
+	 * loaded corpus; otherwise every mini-batch is a job over a few of the input files, and the models between
+	 * them are written to the "batch-<b>" directories of the iteration directory. The total log alpha of a pass
+	 * is the sum of those of its mini-batches, each under the model it was processed with. SQUAREM_KEY is ignored
+	 * in online mode.
+	 */
+	public static final String ONLINE_KEY = "hmmem.online";
+	public static final String ONLINE_BATCH_DIR_PREFIX = "batch-";
+	/**
+	 * If true and Viterbi tagging is enabled, the EM job of an iteration that is predicted to be the last one of a
+	 * seed (because it is the maximum iteration, or because the last two gains in total log alpha extrapolate
+	 * geometrically to a gain below the convergence threshold) also writes the Viterbi taggings of the model it
+	 * runs from (see ExpectationMapper.VITERBI_SEEDS_KEY). If the iteration's total log alpha, which is that of
+	 * the same model, confirms convergence, the taggings are kept instead of running a Viterbi job, which saves
+	 * a scan of the corpus per seed; otherwise they are deleted. Ignored with LOCAL_KEY and ONLINE_KEY.
+	 *
+	 * Kept taggings are thus those of the model the final iteration ran from, one iteration before the final model
+	 * a Viterbi job would tag with. The viterbi directory of every seed has a VITERBI_MODEL_FILE_NAME file naming
+	 * the model directory its taggings were produced with, in either case.
+	 */
+	public static final String FUSED_VITERBI_KEY = "hmmem.fused_viterbi";
+	public static final String VITERBI_DIR_NAME = "viterbi";
+	public static final String VITERBI_MODEL_FILE_NAME = "_model.txt";
+	/**
+	 * If true and Viterbi tagging is enabled, the corpus is decoded with the final model of every seed by posterior
+	 * (max-marginal) decoding instead (see PosteriorDecodingMapper): a map-only job that writes the best state of
+	 * every token, and its top-k state posteriors if PosteriorDecodingMapper.TOP_K_KEY is set, as StatePosteriors
+	 * to a SequenceFile in the "posteriors" directory of the seed. The states of the model, one per line in id
+	 * order, are written next to it. The posteriors are exact even if the EM iterations ran with the "beam" kernel
+	 * (see ForwardBackward.createForPosteriors). Disables FUSED_VITERBI_KEY. Off by default.
+	 */
+	public static final String POSTERIOR_DECODING_KEY = "hmmem.posterior_decoding";
+	public static final String POSTERIORS_DIR_NAME = "posteriors";
+	public static final String STATES_FILE_NAME = "_states.txt";
+	/**
+	 * If true, the EM jobs partition their map output with MaximizationPartitioner, which splits the emissions of
+	 * the states that can emit much more of the vocabulary than others over several reducers, so that the M step
+	 * scales with the number of reducers. The split is planned once from the support of the initial model, and
+	 * the text parameters of the split states' emissions are written to the "em_model_params_split.txt" file of
+	 * every iteration directory. Off by default; ignored with LOCAL_KEY.
+	 *
+	 * The number of reducers of the EM jobs, mapred.reduce.tasks, must be set above 1, as Hadoop defaults to a
+	 * single reducer, with which there is nothing to split over; the driver then warns and partitions as usual.
+	 */
+	public static final String SKEW_AWARE_PARTITIONING_KEY = "hmmem.maximization.skew_aware";
+	public static final String SPLIT_STATES_PARAMS_FILE_NAME = "em_model_params_split.txt";
 
 	private static String startState = null;
 
@@ -59,6 +164,10 @@ public class EMDriver {
 	public static void main(String args[]) throws Exception {
 		System.err.println("~~~~~~~~~~~~~EMDriver~~~~~~~~~~~~~");
 
+		// Strip generic Hadoop options (e.g. -D hmmem.in_mapper_combining=false), which apply to every job.
+		Configuration baseConf = new Configuration();
+		args = new GenericOptionsParser(baseConf, args).getRemainingArgs();
+
 		// Obtain arguments in useful forms.
 		if (args.length != 10) {
 			System.err.println("Exactly 10 arguments must be specified. The arguments given were:");
@@ -88,8 +197,14 @@ public class EMDriver {
 		// Create the random seed for the model parameters.
 		FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
 
-		Double maxLogAlpha = null;
-		int maxLogAlphaIteration = -1;
+		boolean local = baseConf.getBoolean(LOCAL_KEY, false);
+		boolean online = baseConf.getBoolean(ONLINE_KEY, false);
+		boolean tokenizeCorpus = baseConf.getBoolean(TOKENIZED_CORPUS_KEY, false);
+		boolean tokenizedInput = false;
+		LocalEMEngine localEngine = null;
+
+		// Output the random seed of every restart to a file to begin the EM.
+		HmmModel[] models = new HmmModel[numRandomSeeds];
 		for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
 			String randomSeedOutputDirPathStr = outputDirPathStr + "/" + randomSeedNum + "/";
 
@@ -101,47 +216,252 @@ public class EMDriver {
 			Map<StringPair, Double> emisLogProbMap = parsePairFile(emisFileReader, false);
 			emisFileReader.close();
 
-			// Output the random seed to a file to begin the EM.
 			Path randomModelParamsSeedPath = new Path(randomSeedOutputDirPathStr + "/0/" + EM_MODEL_PARAMS_FILE_NAME);
 			FSDataOutputStream randomModelParamsOut = fs.create(randomModelParamsSeedPath, false);
 			outputEMModelParams(transLogProbMap, emisLogProbMap, randomModelParamsOut);
 			randomModelParamsOut.close();
 
-			// Conduct the EM.
-			int finalIteration = -1;
-			Double prevTotalLogAlpha = Double.NEGATIVE_INFINITY;
-			Double totalLogAlpha = null;
-			for (int i = 1; i <= maxIterations || maxIterations < 0; i++) { // Start iteration at 1 because initial parameters are at .../0/
-				logger.info("Running EM iteration " + i + "!");
+			// Also output it as a binary model file, which fixes the state and token ids for all iterations.
+			models[randomSeedNum] = HmmModel.fromLogProbMaps(startState, transLogProbMap, emisLogProbMap);
+			FSDataOutputStream randomModelOut = fs.create(new Path(randomSeedOutputDirPathStr + "/0/"
+					+ HmmModelFile.FILE_NAME), false);
+			HmmModelFile.write(models[randomSeedNum], randomModelOut);
+			randomModelOut.close();
+		}
 
-				finalIteration = i;
-				runEMIteration(jobName, bucketURIStr, inputDirPathStr, randomSeedOutputDirPathStr, startState, i);
+		// The corpus is tokenized or loaded once; the token ids are the same for every random seed.
+		if (tokenizeCorpus) {
+			String tokenizedDirPathStr = outputDirPathStr + "/" + TOKENIZED_CORPUS_DIR_NAME + "/";
+			runTokenization(baseConf, jobName, bucketURIStr, inputDirPathStr, tokenizedDirPathStr, startState,
+					outputDirPathStr + "/0/0/");
+			writeVocabulary(models[0], fs, new Path(tokenizedDirPathStr, VOCABULARY_FILE_NAME));
+
+			inputDirPathStr = tokenizedDirPathStr;
+			tokenizedInput = true;
+		}
+		// The emissions of a state have non-zero probability in the same tokens in every iteration and random seed.
+		int[] splitNumBuckets = new int[0];
+		if (!local && baseConf.getBoolean(SKEW_AWARE_PARTITIONING_KEY, false)) {
+			int numReduceTasks = new JobConf(baseConf).getNumReduceTasks();
+			if (numReduceTasks < 2) {
+				logger.warn(SKEW_AWARE_PARTITIONING_KEY + " has no effect with fewer than 2 reducers ("
+						+ numReduceTasks + "); set mapred.reduce.tasks to the number of reducers of the EM jobs.");
+			} else {
+				String splitStates = MaximizationPartitioner.planSplitStates(models[0], numReduceTasks);
+				if (splitStates != null) {
+					baseConf.set(MaximizationPartitioner.SPLIT_STATES_KEY, splitStates);
+					splitNumBuckets = MaximizationPartitioner.getNumBuckets(new JobConf(baseConf));
+					logger.info("Splitting the emissions of states over reducers (state id:buckets): " + splitStates
+							+ ".");
+				}
+			}
+		}
+		if (local) {
+			localEngine = new LocalEMEngine(baseConf, fs, new Path(inputDirPathStr), tokenizedInput, models[0]);
+		}
+
+		// Conduct the EM of all random seeds that have not converged yet together, so that each iteration reads
+		// the corpus once however many restarts there are.
+		int[] finalIterations = new int[numRandomSeeds];
+		Arrays.fill(finalIterations, -1);
+		double[] prevTotalLogAlphas = new double[numRandomSeeds];
+		Arrays.fill(prevTotalLogAlphas, Double.NEGATIVE_INFINITY);
+		Double[] totalLogAlphas = new Double[numRandomSeeds];
+		double[] lastGains = new double[numRandomSeeds];
+		double[] prevGains = new double[numRandomSeeds];
+
+		boolean posteriorDecoding = baseConf.getBoolean(POSTERIOR_DECODING_KEY, false);
+		boolean fusedViterbi = viterbiFlagInt != 0 && !local && !online && !posteriorDecoding
+				&& baseConf.getBoolean(FUSED_VITERBI_KEY, false);
+		boolean[] tagged = new boolean[numRandomSeeds];
+
+		int racingWarmup = baseConf.getInt(RACING_WARMUP_KEY, 0);
+		int racingHorizon = baseConf.getInt(RACING_HORIZON_KEY, 10);
+		boolean[] stopped = new boolean[numRandomSeeds];
+
+		List<Integer> activeSeeds = new ArrayList<Integer>();
+		for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
+			activeSeeds.add(randomSeedNum);
+		}
+
+		// The model parameters directory each seed's next iteration runs from.
+		String[] modelParamsDirPathStrs = new String[numRandomSeeds];
+		for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
+			modelParamsDirPathStrs[randomSeedNum] = outputDirPathStr + "/" + randomSeedNum + "/0/";
+		}
+
+		OnlineEM[] onlineEMs = new OnlineEM[numRandomSeeds];
+		for (int randomSeedNum = 0; online && randomSeedNum < numRandomSeeds; randomSeedNum++) {
+			onlineEMs[randomSeedNum] = new OnlineEM(models[randomSeedNum], baseConf.getFloat(OnlineEM.DECAY_KEY, 0.7f));
+		}
+
+		SquaremAccelerator accelerator = null;
+		if (baseConf.getBoolean(SQUAREM_KEY, false) && !online) {
+			accelerator = new SquaremAccelerator(numRandomSeeds);
+			for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
+				accelerator.start(randomSeedNum, models[randomSeedNum]);
+			}
+		}
+
+		// Start iteration at 1 because initial parameters are at .../0/
+		for (int i = 1; !activeSeeds.isEmpty() && (i <= maxIterations || maxIterations < 0); i++) {
+			logger.info("Running EM iteration " + i + " of random seeds " + activeSeeds + "!");
+
+			List<Integer> viterbiSeeds = new ArrayList<Integer>();
+			// The model directory every seed of viterbiSeeds runs the iteration, and writes its taggings, from.
+			String[] viterbiModelDirPathStrs = new String[numRandomSeeds];
+			for (int randomSeedNum : activeSeeds) {
+				double gainRatio = lastGains[randomSeedNum] / prevGains[randomSeedNum];
+				if (fusedViterbi && (i == maxIterations || i > 3 && gainRatio > 0 && gainRatio < 1
+						&& lastGains[randomSeedNum] * gainRatio < logAlphaConvergence)) {
+					viterbiSeeds.add(randomSeedNum);
+					viterbiModelDirPathStrs[randomSeedNum] = modelParamsDirPathStrs[randomSeedNum];
+				}
+			}
+			if (!viterbiSeeds.isEmpty()) {
+				logger.info("EM iteration " + i + " also writes the Viterbi taggings of random seeds " + viterbiSeeds
+						+ ".");
+			}
+
+			if (online && local) {
+				for (int randomSeedNum : activeSeeds) {
+					Path iterationDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i + "/");
+					models[randomSeedNum] = localEngine.runOnlinePass(models[randomSeedNum], onlineEMs[randomSeedNum],
+							iterationDirPath, i);
+				}
+			} else if (online) {
+				runOnlinePass(baseConf, fs, jobName, bucketURIStr, inputDirPathStr, tokenizedInput, outputDirPathStr,
+						activeSeeds, models, onlineEMs, startState, i);
+			} else if (local) {
+				for (int randomSeedNum : activeSeeds) {
+					Path iterationDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i + "/");
+					models[randomSeedNum] = localEngine.runIteration(models[randomSeedNum], iterationDirPath, i);
+				}
+			} else {
+				runEMIteration(baseConf, fs, jobName, bucketURIStr, inputDirPathStr, tokenizedInput, outputDirPathStr,
+						activeSeeds, modelParamsDirPathStrs, viterbiSeeds, startState, i);
+
+				// Assemble the binary model file of each seed's iteration from the reducers' part files.
+				for (int randomSeedNum : activeSeeds) {
+					Path iterationDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i + "/");
+					models[randomSeedNum] = HmmModelFile.mergeParts(fs, models[randomSeedNum], iterationDirPath,
+							splitNumBuckets);
+					if (splitNumBuckets.length > 0) {
+						writeSplitStateEmissions(fs, models[randomSeedNum], splitNumBuckets, new Path(iterationDirPath,
+								SPLIT_STATES_PARAMS_FILE_NAME));
+					}
+				}
+			}
 
-				// Check for alpha convergence.
-				String alphaPathStr = randomSeedOutputDirPathStr + "/" + i + "/"
-						+ MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME;
-				Path alphaPath = new Path(alphaPathStr);
-				FSDataInputStream alphaInputStream = fs.open(alphaPath);
-				BufferedReader alphaBufferedReader = new BufferedReader(new InputStreamReader(alphaInputStream));
+			// Check for alpha convergence.
+			for (Iterator<Integer> iter = activeSeeds.iterator(); iter.hasNext();) {
+				int randomSeedNum = iter.next();
+				finalIterations[randomSeedNum] = i;
+
+				double totalLogAlpha = readTotalLogAlpha(fs, new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i
+						+ "/" + MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME));
+
+				System.err.println("Total log alpha for iteration " + i + " of random seed " + randomSeedNum + ": "
+						+ totalLogAlpha);
+
+				// The iteration ran from an extrapolated model, so its total log alpha is the safeguard.
+				boolean extrapolated = accelerator != null && accelerator.isExtrapolated(randomSeedNum);
+				if (extrapolated && totalLogAlpha < prevTotalLogAlphas[randomSeedNum]) {
+					logger.info("Rejecting the extrapolated model of random seed " + randomSeedNum + " in iteration "
+							+ i + ": total log alpha " + totalLogAlpha + " < " + prevTotalLogAlphas[randomSeedNum]
+							+ ".");
+					models[randomSeedNum] = accelerator.reject(randomSeedNum);
+					Path rejectedDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i
+							+ REJECTED_ITERATION_DIR_SUFFIX);
+					fs.rename(new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i), rejectedDirPath);
+					fs.delete(new Path(rejectedDirPath, VITERBI_DIR_NAME), true);
+					logger.info("Moved the output of the rejected iteration to " + rejectedDirPath + ".");
+					finalIterations[randomSeedNum] = i - 1;
+					modelParamsDirPathStrs[randomSeedNum] = outputDirPathStr + "/" + randomSeedNum + "/" + (i - 1)
+							+ "/";
+					continue;
+				} else if (extrapolated) {
+					accelerator.accept(randomSeedNum, models[randomSeedNum]);
+				}
 
-				EMModelParameter totalLogAlphaObject = EMModelParameter.fromString(alphaBufferedReader.readLine());
-				totalLogAlpha = totalLogAlphaObject.getLogCount();
+				totalLogAlphas[randomSeedNum] = totalLogAlpha;
+				prevGains[randomSeedNum] = lastGains[randomSeedNum];
+				lastGains[randomSeedNum] = totalLogAlpha - prevTotalLogAlphas[randomSeedNum];
+				if (lastGains[randomSeedNum] < logAlphaConvergence) {
+					iter.remove();
+					continue;
+				}
+				prevTotalLogAlphas[randomSeedNum] = totalLogAlpha;
+
+				String iterationDirPathStr = outputDirPathStr + "/" + randomSeedNum + "/" + i + "/";
+				modelParamsDirPathStrs[randomSeedNum] = iterationDirPathStr;
+				if (accelerator != null && !extrapolated) {
+					HmmModel extrapolatedModel = accelerator.step(randomSeedNum, models[randomSeedNum]);
+					if (extrapolatedModel != null) {
+						Path extrapolatedDirPath = new Path(iterationDirPathStr,
+								SquaremAccelerator.EXTRAPOLATED_MODEL_DIR_NAME);
+						writeModel(fs, extrapolatedModel, extrapolatedDirPath);
+						models[randomSeedNum] = extrapolatedModel;
+						modelParamsDirPathStrs[randomSeedNum] = extrapolatedDirPath.toString() + "/";
+					}
+				}
+			}
 
-				System.err.println("Total log alpha for iteration " + i + ": " + totalLogAlpha);
+			if (racingWarmup > 0 && i >= Math.max(racingWarmup, 2)) {
+				raceRandomSeeds(i, activeSeeds, totalLogAlphas, lastGains, racingHorizon, stopped);
+			}
 
-				if (totalLogAlpha - prevTotalLogAlpha < logAlphaConvergence) {
-					break;
+			// Keep the Viterbi taggings written by the job for the seeds whose last iteration it was.
+			for (int randomSeedNum : viterbiSeeds) {
+				Path viterbiDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + i + "/" + VITERBI_DIR_NAME);
+				if (finalIterations[randomSeedNum] == i && !stopped[randomSeedNum]
+						&& (!activeSeeds.contains(randomSeedNum) || i == maxIterations)) {
+					Path seedViterbiDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + VITERBI_DIR_NAME);
+					fs.rename(viterbiDirPath, seedViterbiDirPath);
+					writeViterbiModel(fs, viterbiModelDirPathStrs[randomSeedNum], new Path(seedViterbiDirPath,
+							VITERBI_MODEL_FILE_NAME));
+					tagged[randomSeedNum] = true;
+					logger.info("Kept the Viterbi taggings of random seed " + randomSeedNum + " written by EM iteration "
+							+ i + ", with the model it ran from (" + viterbiModelDirPathStrs[randomSeedNum] + ").");
 				} else {
-					prevTotalLogAlpha = totalLogAlpha;
+					fs.delete(viterbiDirPath, true);
 				}
 			}
+		}
+
+		if (racingWarmup > 0) {
+			List<Integer> stoppedSeeds = new ArrayList<Integer>();
+			for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
+				if (stopped[randomSeedNum]) {
+					stoppedSeeds.add(randomSeedNum);
+				}
+			}
+			logger.info("Racing stopped " + stoppedSeeds.size() + " of " + numRandomSeeds + " random seeds: "
+					+ stoppedSeeds + ".");
+		}
+
+		Double maxLogAlpha = null;
+		int maxLogAlphaIteration = -1;
+		for (int randomSeedNum = 0; randomSeedNum < numRandomSeeds; randomSeedNum++) {
+			String randomSeedOutputDirPathStr = outputDirPathStr + "/" + randomSeedNum + "/";
+			int finalIteration = finalIterations[randomSeedNum];
+			Double totalLogAlpha = totalLogAlphas[randomSeedNum];
 
 			if (viterbiFlagInt != 0) {
-				// Run Viterbi to tag the input corpora.
-				if (finalIteration != -1) {
+				// Run Viterbi (or posterior decoding) to tag the input corpora.
+				if (finalIteration != -1 && !stopped[randomSeedNum] && !tagged[randomSeedNum]) {
 					String modelParamsDirPathStr = randomSeedOutputDirPathStr + "/" + finalIteration + "/";
-					runViterbi(jobName, bucketURIStr, inputDirPathStr, randomSeedOutputDirPathStr, startState,
-							modelParamsDirPathStr);
+					if (posteriorDecoding) {
+						String posteriorsDirPathStr = randomSeedOutputDirPathStr + "/" + POSTERIORS_DIR_NAME + "/";
+						runPosteriorDecoding(baseConf, jobName, bucketURIStr, inputDirPathStr, tokenizedInput,
+								posteriorsDirPathStr, startState, modelParamsDirPathStr, finalIteration);
+						writeStates(models[randomSeedNum], fs, new Path(posteriorsDirPathStr, STATES_FILE_NAME));
+					} else {
+						runViterbi(baseConf, jobName, bucketURIStr, inputDirPathStr, tokenizedInput,
+								randomSeedOutputDirPathStr, startState, modelParamsDirPathStr, finalIteration);
+						writeViterbiModel(fs, modelParamsDirPathStr, new Path(randomSeedOutputDirPathStr + "/"
+								+ VITERBI_DIR_NAME, VITERBI_MODEL_FILE_NAME));
+					}
 				}
 
 				if (maxLogAlpha == null || totalLogAlpha != null && totalLogAlpha > maxLogAlpha) {
@@ -151,11 +471,42 @@ public class EMDriver {
 			}
 		}
 
+		if (localEngine != null) {
+			localEngine.close();
+		}
 		fs.close();
 
 		System.err.println("Max log alpha " + maxLogAlpha + " produced by random seed " + maxLogAlphaIteration + ".");
 	}
 
+	/**
+	 * Removes the active seeds that cannot catch up with the seed with the best total log alpha within the given
+	 * number of iterations from activeSeeds, and marks them as stopped.
+	 */
+	private static void raceRandomSeeds(int iteration, List<Integer> activeSeeds, Double[] totalLogAlphas,
+			double[] lastGains, int horizon, boolean[] stopped) {
+		int leader = -1;
+		for (int randomSeedNum = 0; randomSeedNum < totalLogAlphas.length; randomSeedNum++) {
+			if (totalLogAlphas[randomSeedNum] != null
+					&& (leader < 0 || totalLogAlphas[randomSeedNum] > totalLogAlphas[leader])) {
+				leader = randomSeedNum;
+			}
+		}
+
+		for (Iterator<Integer> iter = activeSeeds.iterator(); iter.hasNext();) {
+			int randomSeedNum = iter.next();
+			double bound = totalLogAlphas[randomSeedNum] + horizon * Math.max(lastGains[randomSeedNum], 0.0);
+			if (bound < totalLogAlphas[leader]) {
+				logger.info("Stopping random seed " + randomSeedNum + " after iteration " + iteration
+						+ ": total log alpha " + totalLogAlphas[randomSeedNum] + ", last gain "
+						+ lastGains[randomSeedNum] + ", leader random seed " + leader + " at "
+						+ totalLogAlphas[leader] + ".");
+				stopped[randomSeedNum] = true;
+				iter.remove();
+			}
+		}
+	}
+
 	/**
 	 * Parses the given pair file, where each line is of the form
 	 * "<from_state> <to_state>" (for transition files) or "<state> <token>" for emission files.
@@ -210,45 +561,68 @@ public class EMDriver {
 	}
 
 	/**
-	 * Given two numbers log(x) and log(y), returns log(x+y). If both log(x) and log(y) are negative,
-	 * calculates the log of the sum in the following manner to reduce the risk of underflow:
-	 * Finds log(z) = min(log(x), log(y)). Then adds log(z) to both log(x) and log(y) before
-	 * exponentiating, adds the two exponentiations, takes the log of the sum, and then
-	 * subtracts log(z). This calculation works properly because z*x + z*y = z*(x+y),
-	 * so 2^(log(z)+log(x)) + 2^(log(z)+log(y)) = 2^(log(z)+log(x+y)).
-	 * Thus, log(2^(log(z)+log(x)) + 2^(log(z)+log(y))) = log(2^(log(z)+log(x+y))) = log(z)+log(x+y).
-	 *
-	 * Note: If logx (logy) is passed as null, then x (y) is interpreted as 0. If both parameters
-	 * are passed as null, then null is returned.
+	 * Reads the total log alpha from the given total log alpha file.
 	 */
-	public static Double calcLogSumOfLogs(Double logX, Double logY) {
-		if (logX == null && logY == null) {
-			return null;
-		} else if (logX == null) {
-			return logY;
-		} else if (logY == null) {
-			return logX;
-		}
+	private static double readTotalLogAlpha(FileSystem fs, Path alphaPath) throws Exception {
+		FSDataInputStream alphaInputStream = fs.open(alphaPath);
+		BufferedReader alphaBufferedReader = new BufferedReader(new InputStreamReader(alphaInputStream));
 
-		if (logX >= 0 || logY >= 0) {
-			double x = Math.pow(2, logX);
-			double y = Math.pow(2, logY);
+		EMModelParameter totalLogAlphaObject = EMModelParameter.fromString(alphaBufferedReader.readLine());
+		alphaBufferedReader.close();
+		return totalLogAlphaObject.getLogCount();
+	}
 
-			double logSum = Math.log(x + y) / Math.log(2);
-			return logSum;
+	/**
+	 * Writes the given total log alpha to the given total log alpha file.
+	 */
+	private static void writeTotalLogAlpha(FileSystem fs, Path alphaPath, double totalLogAlpha) throws IOException {
+		try (FSDataOutputStream out = fs.create(alphaPath, false)) {
+			out.write(EMModelParameter.makeAlphaObject(totalLogAlpha).toString().getBytes());
 		}
+	}
+
+	/**
+	 * Writes the given model to the given directory as the text model parameters file and the binary model file.
+	 */
+	private static void writeModel(FileSystem fs, HmmModel model, Path modelParamsDirPath) throws IOException {
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		model.fillLogProbMaps(transLogProbMap, emisLogProbMap);
 
-		double logZ = Math.min(logX, logY);
-		double scaledLogX = logX + logZ;
-		double scaledLogY = logY + logZ;
+		try (FSDataOutputStream out = fs.create(new Path(modelParamsDirPath, EM_MODEL_PARAMS_FILE_NAME), false)) {
+			outputEMModelParams(transLogProbMap, emisLogProbMap, out);
+		}
 
-		double scaledX = Math.pow(2, scaledLogX);
-		double scaledY = Math.pow(2, scaledLogY);
+		try (FSDataOutputStream out = fs.create(new Path(modelParamsDirPath, HmmModelFile.FILE_NAME), false)) {
+			HmmModelFile.write(model, out);
+		}
+	}
 
-		double logScaledSum = Math.log(scaledX + scaledY) / Math.log(2);
-		double logSum = logScaledSum - logZ;
+	/**
+	 * Writes the emissions of the split states of the model, which the reducers only output to the binary part
+	 * files, as serialized EMModelParameters to the given file.
+	 */
+	private static void writeSplitStateEmissions(FileSystem fs, HmmModel model, int[] splitNumBuckets,
+			Path splitStatesParamsPath) throws IOException {
+		double[] emisLogProbs = model.getEmisLogProbs();
+		int numStates = model.getNumStates();
+
+		try (FSDataOutputStream out = fs.create(splitStatesParamsPath, false)) {
+			for (int state = 0; state < splitNumBuckets.length; state++) {
+				if (splitNumBuckets[state] <= 1) {
+					continue;
+				}
 
-		return logSum;
+				for (int tokenId = 0; tokenId < model.getNumTokens(); tokenId++) {
+					double logProb = emisLogProbs[tokenId * numStates + state];
+					if (logProb != Double.NEGATIVE_INFINITY) {
+						EMModelParameter emisModelParam = new EMModelParameter(EMModelParameter.PARAMETER_TYPE_EMISSION,
+								new Text(model.getState(state)), new Text(model.getToken(tokenId)), logProb);
+						out.write((emisModelParam.toString() + "\n").getBytes());
+					}
+				}
+			}
+		}
 	}
 
 	/**
@@ -272,50 +646,211 @@ public class EMDriver {
 	}
 
 	/**
-	 * Conduct a single iteration of EM. Returns true if the algorithm has converged.
+	 * Conduct a single iteration of EM for the models of the given random seeds, which run from the given model
+	 * parameters directories (indexed by seed) and whose outputs go to the iteration directories in their seed
+	 * directories of the output directory. The Viterbi taggings of the models of viterbiSeedNums go to the
+	 * "viterbi" directory of their iteration directory.
 	 */
-	private static void runEMIteration(String jobName, String bucketURIStr, String inputDirPathStr,
-			String outputDirPathStr, String startState, int iteration) throws IOException {
-		JobConf conf = new JobConf(EMDriver.class);
-		conf.setJobName(jobName + "-" + iteration);
+	private static void runEMIteration(Configuration baseConf, FileSystem fs, String jobName, String bucketURIStr,
+			String inputDirPathStr, boolean tokenizedInput, String outputDirPathStr, List<Integer> randomSeedNums,
+			String[] seedModelParamsDirPathStrs, List<Integer> viterbiSeedNums, String startState, int iteration)
+			throws IOException {
+		JobConf conf = makeEMJobConf(baseConf, jobName + "-" + iteration, bucketURIStr, tokenizedInput,
+				randomSeedNums, seedModelParamsDirPathStrs, startState, iteration - 1);
+		if (!viterbiSeedNums.isEmpty()) {
+			conf.set(ExpectationMapper.VITERBI_SEEDS_KEY, StringUtils.join(",", viterbiSeedNums.toArray()));
+			MultipleOutputs.addMultiNamedOutput(conf, ExpectationMapper.VITERBI_NAMED_OUTPUT, TextOutputFormat.class,
+					NullWritable.class, TaggedObservationSequence.class);
+		}
+
+		// The job writes the outputs of each seed to a subdirectory named after it, which is then moved to the
+		// iteration directory of the seed.
+		Path jobOutputDirPath = new Path(outputDirPathStr + "/" + EM_JOB_OUTPUT_DIR_PREFIX + iteration + "/");
+		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+		FileOutputFormat.setOutputPath(conf, jobOutputDirPath);
+
+		RunningJob job = JobClient.runJob(conf);
+		logIterationCounters(iteration, job.getCounters());
+
+		for (int randomSeedNum : randomSeedNums) {
+			fs.rename(new Path(jobOutputDirPath, Integer.toString(randomSeedNum)), new Path(outputDirPathStr + "/"
+					+ randomSeedNum + "/" + iteration + "/"));
+		}
+
+		// The named output files of seed s are "viterbi_s-m-<part>", which become "viterbi/part-m-<part>".
+		for (int randomSeedNum : viterbiSeedNums) {
+			String prefix = ExpectationMapper.VITERBI_NAMED_OUTPUT + "_" + randomSeedNum + "-";
+			Path viterbiDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + iteration + "/"
+					+ VITERBI_DIR_NAME);
+			fs.mkdirs(viterbiDirPath);
+			for (FileStatus fileStatus : fs.listStatus(jobOutputDirPath)) {
+				String name = fileStatus.getPath().getName();
+				if (name.startsWith(prefix)) {
+					fs.rename(fileStatus.getPath(), new Path(viterbiDirPath, "part-" + name.substring(prefix.length())));
+				}
+			}
+		}
+		fs.delete(jobOutputDirPath, true);
+	}
+
+	/**
+	 * Runs one pass of online EM for the models of the given random seeds as a series of EM jobs, one per
+	 * mini-batch of OnlineEM.BATCH_FILES_KEY input files, whose reducers output the expected counts of the
+	 * mini-batch instead of normalizing them. After every job, the counts of each seed are blended into its
+	 * OnlineEM statistics, and the updated model replaces the seed's entry of models and is written to the
+	 * iteration directory of the seed, or to its "batch-<b>" directory if more mini-batches follow.
+	 */
+	private static void runOnlinePass(Configuration baseConf, FileSystem fs, String jobName, String bucketURIStr,
+			String inputDirPathStr, boolean tokenizedInput, String outputDirPathStr, List<Integer> randomSeedNums,
+			HmmModel[] models, OnlineEM[] onlineEMs, String startState, int iteration) throws Exception {
+		List<Path> inputPaths = new ArrayList<Path>();
+		for (FileStatus inputFileStatus : fs.listStatus(new Path(inputDirPathStr))) {
+			String name = inputFileStatus.getPath().getName();
+			if (!inputFileStatus.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+				inputPaths.add(inputFileStatus.getPath());
+			}
+		}
+		int batchFiles = baseConf.getInt(OnlineEM.BATCH_FILES_KEY, 1);
+		int numBatches = (inputPaths.size() + batchFiles - 1) / batchFiles;
+
+		String[] modelParamsDirPathStrs = new String[models.length];
+		double[] totalLogAlphas = new double[models.length];
+		for (int randomSeedNum : randomSeedNums) {
+			modelParamsDirPathStrs[randomSeedNum] = outputDirPathStr + "/" + randomSeedNum + "/" + (iteration - 1)
+					+ "/";
+		}
+
+		for (int batch = 0; batch < numBatches; batch++) {
+			List<Path> batchInputPaths = inputPaths.subList(batch * batchFiles,
+					Math.min((batch + 1) * batchFiles, inputPaths.size()));
+
+			// Models are cached by path and version, so the version is the number of updates so far.
+			JobConf conf = makeEMJobConf(baseConf, jobName + "-" + iteration + "-" + batch, bucketURIStr,
+					tokenizedInput, randomSeedNums, modelParamsDirPathStrs, startState,
+					onlineEMs[randomSeedNums.get(0)].getNumUpdates());
+			conf.setBoolean(MaximizationReducer.NORMALIZE_KEY, false);
+
+			Path jobOutputDirPath = new Path(outputDirPathStr + "/" + EM_JOB_OUTPUT_DIR_PREFIX + iteration + "-"
+					+ batch + "/");
+			FileInputFormat.setInputPaths(conf, batchInputPaths.toArray(new Path[batchInputPaths.size()]));
+			FileOutputFormat.setOutputPath(conf, jobOutputDirPath);
+
+			RunningJob job = JobClient.runJob(conf);
+			logIterationCounters(iteration, job.getCounters());
+			int numBatchSequences = (int) job.getCounters().getCounter(EMCounters.SEQUENCES);
+
+			for (int randomSeedNum : randomSeedNums) {
+				Path seedOutputDirPath = new Path(jobOutputDirPath, Integer.toString(randomSeedNum));
+				Path alphaPath = new Path(seedOutputDirPath, MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME);
+				if (!fs.exists(alphaPath)) {
+					continue; // No sequence of the mini-batch has non-zero probability under the model.
+				}
+
+				totalLogAlphas[randomSeedNum] += readTotalLogAlpha(fs, alphaPath);
+				HmmModel batchLogCounts = HmmModelFile.mergeParts(fs, models[randomSeedNum], seedOutputDirPath);
+				models[randomSeedNum] = onlineEMs[randomSeedNum].update(models[randomSeedNum], batchLogCounts,
+						numBatchSequences);
+
+				if (batch < numBatches - 1) {
+					modelParamsDirPathStrs[randomSeedNum] = outputDirPathStr + "/" + randomSeedNum + "/" + iteration
+							+ "/" + ONLINE_BATCH_DIR_PREFIX + batch + "/";
+					writeModel(fs, models[randomSeedNum], new Path(modelParamsDirPathStrs[randomSeedNum]));
+				}
+			}
+			fs.delete(jobOutputDirPath, true);
+		}
+
+		for (int randomSeedNum : randomSeedNums) {
+			Path iterationDirPath = new Path(outputDirPathStr + "/" + randomSeedNum + "/" + iteration + "/");
+			writeModel(fs, models[randomSeedNum], iterationDirPath);
+			writeTotalLogAlpha(fs, new Path(iterationDirPath, MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME),
+					totalLogAlphas[randomSeedNum]);
+		}
+	}
+
+	/**
+	 * Makes the configuration of an EM job for the models of the given random seeds, which run from the given
+	 * model parameters directories (indexed by seed), without its input and output paths.
+	 */
+	private static JobConf makeEMJobConf(Configuration baseConf, String jobName, String bucketURIStr,
+			boolean tokenizedInput, List<Integer> randomSeedNums, String[] seedModelParamsDirPathStrs,
+			String startState, int modelVersion) {
+		JobConf conf = new JobConf(baseConf, EMDriver.class);
+		conf.setJobName(jobName);
 
 		conf.setMapperClass(ExpectationMapper.class);
+		int mapThreads = conf.getInt(ExpectationMapper.MAP_THREADS_KEY, 1);
+		if (mapThreads > 1) {
+			conf.setMapRunnerClass(MultithreadedMapRunner.class);
+			conf.setInt("mapred.map.multithreadedrunner.threads", mapThreads);
+		}
+		conf.setCombinerClass(ExpectationCombiner.class);
 		conf.setReducerClass(MaximizationReducer.class);
+		if (conf.get(MaximizationPartitioner.SPLIT_STATES_KEY) != null) {
+			conf.setPartitionerClass(MaximizationPartitioner.class);
+		}
 
-		conf.setInputFormat(TextInputFormat.class);
-		conf.setOutputFormat(TextOutputFormat.class);
+		conf.setInputFormat(tokenizedInput ? SequenceFileInputFormat.class : TextInputFormat.class);
+		conf.setOutputFormat(MaximizationReducer.SeedOutputFormat.class);
 
-		conf.setMapOutputKeyClass(Text.class);
-		conf.setMapOutputValueClass(EMModelParameter.class);
-		conf.setOutputKeyClass(NullWritable.class);
+		conf.setMapOutputKeyClass(EMParameterKey.class);
+		conf.setMapOutputValueClass(DoubleWritable.class);
+		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(EMModelParameter.class);
 
-		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
-		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/" + iteration + "/"));
-
 		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
 
-		String modelParamsDirPathStr = outputDirPathStr + "/" + (iteration - 1) + "/";
-		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		String[] seedStrs = new String[randomSeedNums.size()];
+		String[] modelParamsDirPathStrs = new String[randomSeedNums.size()];
+		for (int i = 0; i < seedStrs.length; i++) {
+			seedStrs[i] = Integer.toString(randomSeedNums.get(i));
+			modelParamsDirPathStrs[i] = seedModelParamsDirPathStrs[randomSeedNums.get(i)];
+			addModelToDistributedCache(modelParamsDirPathStrs[i], conf);
+		}
+		conf.setStrings(ExpectationMapper.MODEL_SEEDS_KEY, seedStrs);
+		conf.setStrings(ExpectationMapper.MODEL_PARAMETERS_DIR_PATHS_KEY, modelParamsDirPathStrs);
+		conf.setInt(ModelCache.ITERATION_KEY, modelVersion);
 
 		conf.set(ExpectationMapper.START_STATE_KEY, startState);
 
-		JobClient.runJob(conf);
+		return conf;
+	}
+
+	/**
+	 * Logs where the time of an EM iteration went, from the EMCounters of its job.
+	 */
+	private static void logIterationCounters(int iteration, Counters counters) {
+		logger.info("EM iteration " + iteration + ": " + counters.getCounter(EMCounters.SEQUENCES) + " sequences ("
+				+ counters.getCounter(EMCounters.ZERO_PROBABILITY_SEQUENCES) + " with probability 0, "
+				+ counters.getCounter(EMCounters.UNKNOWN_TOKEN_SEQUENCES) + " with unknown tokens), "
+				+ counters.getCounter(EMCounters.TOKENS) + " tokens, forward-backward "
+				+ counters.getCounter(EMCounters.FORWARD_BACKWARD_NANOS) / 1000000 + " ms, collect "
+				+ counters.getCounter(EMCounters.COLLECT_NANOS) / 1000000 + " ms, "
+				+ counters.getCounter(EMCounters.EMITTED_RECORDS) + " map output records, maximization "
+				+ counters.getCounter(EMCounters.MAXIMIZATION_NANOS) / 1000000 + " ms, "
+				+ counters.getCounter(EMCounters.OUTPUT_PARAMETERS) + " parameters.");
+
+		long keptCells = counters.getCounter(EMCounters.BEAM_KEPT_CELLS);
+		if (keptCells > 0) {
+			logger.info("EM iteration " + iteration + ": beam kept " + keptCells + " lattice cells and pruned "
+					+ counters.getCounter(EMCounters.BEAM_PRUNED_CELLS) + ".");
+		}
 	}
 
 	/**
 	 * Run a Viterbi tagging job.
 	 */
-	private static void runViterbi(String jobName, String bucketURIStr, String inputDirPathStr,
-			String outputDirPathStr, String startState, String modelParamsDirPathStr) throws IOException {
-		JobConf conf = new JobConf(EMDriver.class);
+	private static void runViterbi(Configuration baseConf, String jobName, String bucketURIStr,
+			String inputDirPathStr, boolean tokenizedInput, String outputDirPathStr, String startState,
+			String modelParamsDirPathStr, int modelIteration) throws IOException {
+		JobConf conf = new JobConf(baseConf, EMDriver.class);
 		conf.setJobName(jobName + "-viterbi");
 
 		conf.setMapperClass(ViterbiMapReduce.ViterbiMapper.class);
 		//		conf.setReducerClass(ViterbiMapReduce.ViterbiReducer.class);
 		conf.setNumReduceTasks(0);
 
-		conf.setInputFormat(TextInputFormat.class);
+		conf.setInputFormat(tokenizedInput ? SequenceFileInputFormat.class : TextInputFormat.class);
 		conf.setOutputFormat(TextOutputFormat.class);
 
 		conf.setMapOutputKeyClass(NullWritable.class);
@@ -324,13 +859,128 @@ public class EMDriver {
 		conf.setOutputValueClass(TaggedObservationSequence.class);
 
 		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
-		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/viterbi/"));
+		FileOutputFormat.setOutputPath(conf, new Path(outputDirPathStr + "/" + VITERBI_DIR_NAME + "/"));
 
 		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
 		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		conf.setInt(ModelCache.ITERATION_KEY, modelIteration);
 		conf.set(ExpectationMapper.START_STATE_KEY, startState);
 
+		addModelToDistributedCache(modelParamsDirPathStr, conf);
+
 		JobClient.runJob(conf);
 	}
 
+	/**
+	 * Run the map-only posterior decoding job of the model in the given model parameters directory.
+	 */
+	private static void runPosteriorDecoding(Configuration baseConf, String jobName, String bucketURIStr,
+			String inputDirPathStr, boolean tokenizedInput, String posteriorsDirPathStr, String startState,
+			String modelParamsDirPathStr, int modelIteration) throws IOException {
+		JobConf conf = new JobConf(baseConf, EMDriver.class);
+		conf.setJobName(jobName + "-posteriors");
+
+		conf.setMapperClass(PosteriorDecodingMapper.class);
+		conf.setNumReduceTasks(0);
+
+		conf.setInputFormat(tokenizedInput ? SequenceFileInputFormat.class : TextInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(StatePosteriors.class);
+
+		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+		FileOutputFormat.setOutputPath(conf, new Path(posteriorsDirPathStr));
+
+		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
+		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		conf.setInt(ModelCache.ITERATION_KEY, modelIteration);
+		conf.set(ExpectationMapper.START_STATE_KEY, startState);
+
+		addModelToDistributedCache(modelParamsDirPathStr, conf);
+
+		RunningJob job = JobClient.runJob(conf);
+		Counters counters = job.getCounters();
+		logger.info("Posterior decoding tagged " + counters.getCounter(EMCounters.TAGGED_SEQUENCES) + " sequences, "
+				+ counters.getCounter(EMCounters.TAGGED_TOKENS) + " tokens in "
+				+ counters.getCounter(EMCounters.FORWARD_BACKWARD_NANOS) / 1000000 + " ms of forward-backward.");
+	}
+
+	/**
+	 * Run the map-only job that writes the tokenized corpus, coded with the token ids of the model in the given
+	 * model parameters directory.
+	 */
+	private static void runTokenization(Configuration baseConf, String jobName, String bucketURIStr,
+			String inputDirPathStr, String tokenizedDirPathStr, String startState, String modelParamsDirPathStr)
+			throws IOException {
+		JobConf conf = new JobConf(baseConf, EMDriver.class);
+		conf.setJobName(jobName + "-tokenize");
+
+		conf.setMapperClass(TokenizerMapper.class);
+		conf.setNumReduceTasks(0);
+
+		conf.setInputFormat(TextInputFormat.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(EncodedObservationSequence.class);
+
+		FileInputFormat.setInputPaths(conf, new Path(inputDirPathStr));
+		FileOutputFormat.setOutputPath(conf, new Path(tokenizedDirPathStr));
+
+		conf.set(ExpectationMapper.BUCKET_URI_KEY, bucketURIStr);
+		conf.set(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY, modelParamsDirPathStr);
+		conf.setInt(ModelCache.ITERATION_KEY, 0);
+		conf.set(ExpectationMapper.START_STATE_KEY, startState);
+
+		addModelToDistributedCache(modelParamsDirPathStr, conf);
+
+		RunningJob job = JobClient.runJob(conf);
+		Counters counters = job.getCounters();
+		logger.info("Tokenized " + counters.getCounter(EMCounters.SEQUENCES) + " sequences, "
+				+ counters.getCounter(EMCounters.TOKENS) + " tokens (left out "
+				+ counters.getCounter(EMCounters.EMPTY_SEQUENCES) + " empty and "
+				+ counters.getCounter(EMCounters.UNKNOWN_TOKEN_SEQUENCES) + " with unknown tokens).");
+	}
+
+	/**
+	 * Writes the tokens of the model, one per line in id order.
+	 */
+	private static void writeVocabulary(HmmModel model, FileSystem fs, Path vocabularyPath) throws IOException {
+		try (FSDataOutputStream out = fs.create(vocabularyPath, false)) {
+			for (int tokenId = 0; tokenId < model.getNumTokens(); tokenId++) {
+				out.write((model.getToken(tokenId) + "\n").getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Writes the states of the model, one per line in id order.
+	 */
+	private static void writeStates(HmmModel model, FileSystem fs, Path statesPath) throws IOException {
+		try (FSDataOutputStream out = fs.create(statesPath, false)) {
+			for (int state = 0; state < model.getNumStates(); state++) {
+				out.write((model.getState(state) + "\n").getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Writes the model directory the Viterbi taggings of a seed were produced with (see FUSED_VITERBI_KEY).
+	 */
+	private static void writeViterbiModel(FileSystem fs, String modelParamsDirPathStr, Path viterbiModelPath)
+			throws IOException {
+		try (FSDataOutputStream out = fs.create(viterbiModelPath, false)) {
+			out.write((new Path(modelParamsDirPathStr) + "\n").getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * Ships the binary model file in the given model parameters directory to the tasks of the job.
+	 */
+	private static void addModelToDistributedCache(String modelParamsDirPathStr, JobConf conf) {
+		Path modelPath = new Path(modelParamsDirPathStr, HmmModelFile.FILE_NAME);
+		DistributedCache.addCacheFile(modelPath.toUri(), conf);
+	}
+
 }
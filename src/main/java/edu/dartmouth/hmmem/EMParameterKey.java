@@ -0,0 +1,177 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Compact map output key of the EM job: identifies a transition, an emission or the alpha of one of the models
+ * trained by the job, by the random seed number of the model and the ids the states and tokens have in its
+ * HmmModel of the previous iteration. The expected log count travels as the value (a DoubleWritable).
+ *
+ * Serialized as vint seed, vint fromId, byte type, vint toId, which is also the sort order, so the registered
+ * raw Comparator sorts the map output without deserializing it. Keys sort (and partition, see hashCode) by seed
+ * and from state first, so a reducer receives all transitions and all emissions of a state of a model back to
+ * back.
+ *
+ * fromId is the from state of a transition (-1 for the start state when it is not a regular state) or the
+ * state of an emission, toId the to state or the token. The alpha has fromId and toId -1.
+ */
+public class EMParameterKey implements WritableComparable<EMParameterKey> {
+
+	private int seed;
+	private byte parameterType;
+	private int fromId;
+	private int toId;
+
+	public EMParameterKey() {
+	}
+
+	public EMParameterKey(char parameterType, int fromId, int toId) {
+		set(parameterType, fromId, toId);
+	}
+
+	/**
+	 * Sets the parameter of the key; the seed is left unchanged.
+	 */
+	public void set(char parameterType, int fromId, int toId) {
+		this.parameterType = (byte) parameterType;
+		this.fromId = fromId;
+		this.toId = toId;
+	}
+
+	public void setSeed(int seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the key to the alpha of the model; the seed is left unchanged.
+	 */
+	public void setAlpha() {
+		set(EMModelParameter.TYPE_ALPHA, -1, -1);
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	public char getParameterType() {
+		return (char) parameterType;
+	}
+
+	public int getFromId() {
+		return fromId;
+	}
+
+	public int getToId() {
+		return toId;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		seed = WritableUtils.readVInt(in);
+		fromId = WritableUtils.readVInt(in);
+		parameterType = in.readByte();
+		toId = WritableUtils.readVInt(in);
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, seed);
+		WritableUtils.writeVInt(out, fromId);
+		out.writeByte(parameterType);
+		WritableUtils.writeVInt(out, toId);
+	}
+
+	@Override
+	public int compareTo(EMParameterKey other) {
+		if (seed != other.seed) {
+			return seed < other.seed ? -1 : 1;
+		}
+		if (fromId != other.fromId) {
+			return fromId < other.fromId ? -1 : 1;
+		}
+		if (parameterType != other.parameterType) {
+			return parameterType < other.parameterType ? -1 : 1;
+		}
+		if (toId != other.toId) {
+			return toId < other.toId ? -1 : 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof EMParameterKey)) {
+			return false;
+		}
+		return compareTo((EMParameterKey) o) == 0;
+	}
+
+	/**
+	 * Hashes on the seed and from id only, so that the default HashPartitioner sends every parameter of a state of
+	 * a model to the same reducer, which needs all of them to normalize.
+	 */
+	@Override
+	public int hashCode() {
+		return 31 * seed + fromId;
+	}
+
+	@Override
+	public String toString() {
+		return seed + ":" + getParameterType() + "(" + fromId + "," + toId + ")";
+	}
+
+	/**
+	 * Compares serialized keys field by field without deserializing them.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(EMParameterKey.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				int seed1 = readVInt(b1, s1);
+				int seed2 = readVInt(b2, s2);
+				if (seed1 != seed2) {
+					return seed1 < seed2 ? -1 : 1;
+				}
+
+				int fromOffset1 = s1 + WritableUtils.decodeVIntSize(b1[s1]);
+				int fromOffset2 = s2 + WritableUtils.decodeVIntSize(b2[s2]);
+				int fromId1 = readVInt(b1, fromOffset1);
+				int fromId2 = readVInt(b2, fromOffset2);
+				if (fromId1 != fromId2) {
+					return fromId1 < fromId2 ? -1 : 1;
+				}
+
+				int typeOffset1 = fromOffset1 + WritableUtils.decodeVIntSize(b1[fromOffset1]);
+				int typeOffset2 = fromOffset2 + WritableUtils.decodeVIntSize(b2[fromOffset2]);
+				if (b1[typeOffset1] != b2[typeOffset2]) {
+					return b1[typeOffset1] < b2[typeOffset2] ? -1 : 1;
+				}
+
+				int toId1 = readVInt(b1, typeOffset1 + 1);
+				int toId2 = readVInt(b2, typeOffset2 + 1);
+				if (toId1 != toId2) {
+					return toId1 < toId2 ? -1 : 1;
+				}
+				return 0;
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	static {
+		WritableComparator.define(EMParameterKey.class, new Comparator());
+	}
+
+}
@@ -0,0 +1,90 @@
+package edu.dartmouth.hmmem;
+
+/**
+ * Inverted index from each token of an HmmModel to the states that emit it with non-zero probability, in
+ * compressed sparse row form, so that forward-backward and Viterbi only visit the states that can be at a
+ * position instead of all of them.
+ *
+ * The states emitting token t are emittingStates[offsets[t] .. offsets[t+1]), in increasing order, and
+ * emisLogProbs/emisProbs hold log P(t|state)/P(t|state) of the same entries.
+ *
+ * The index is a snapshot of the model's emission probabilities when it was built.
+ */
+public class EmissionIndex {
+
+	private final int[] offsets;
+	private final int[] emittingStates;
+	private final double[] emisLogProbs;
+	private final double[] emisProbs;
+
+	private final int maxEmittingStates;
+
+	public EmissionIndex(HmmModel model) {
+		int numStates = model.getNumStates();
+		int numTokens = model.getNumTokens();
+		double[] modelEmisLogProbs = model.getEmisLogProbs();
+		double[] modelEmisProbs = model.getEmisProbs();
+
+		offsets = new int[numTokens + 1];
+		int maxCount = 0;
+		for (int token = 0; token < numTokens; token++) {
+			int count = 0;
+			for (int state = 0; state < numStates; state++) {
+				if (modelEmisLogProbs[token * numStates + state] != Double.NEGATIVE_INFINITY) {
+					count++;
+				}
+			}
+
+			offsets[token + 1] = offsets[token] + count;
+			maxCount = Math.max(maxCount, count);
+		}
+		maxEmittingStates = maxCount;
+
+		int numEntries = offsets[numTokens];
+		emittingStates = new int[numEntries];
+		emisLogProbs = new double[numEntries];
+		emisProbs = new double[numEntries];
+
+		// The emission arrays are token-major, so a single scan fills every token's entries in state order.
+		int entry = 0;
+		for (int i = 0; i < modelEmisLogProbs.length; i++) {
+			if (modelEmisLogProbs[i] != Double.NEGATIVE_INFINITY) {
+				emittingStates[entry] = i % numStates;
+				emisLogProbs[entry] = modelEmisLogProbs[i];
+				emisProbs[entry] = modelEmisProbs[i];
+				entry++;
+			}
+		}
+	}
+
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	public int[] getEmittingStates() {
+		return emittingStates;
+	}
+
+	public double[] getEmisLogProbs() {
+		return emisLogProbs;
+	}
+
+	public double[] getEmisProbs() {
+		return emisProbs;
+	}
+
+	/**
+	 * Returns the largest number of states that emit a single token.
+	 */
+	public int getMaxEmittingStates() {
+		return maxEmittingStates;
+	}
+
+	/**
+	 * Returns a rough estimate of the heap size of the index in bytes.
+	 */
+	public long estimateSizeInBytes() {
+		return 4L * offsets.length + (4L + 8 + 8) * emittingStates.length;
+	}
+
+}
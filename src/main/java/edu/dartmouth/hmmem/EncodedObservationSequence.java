@@ -0,0 +1,55 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Observation sequence coded with the token ids of the HmmModel, as stored in the tokenized corpus written by
+ * TokenizerMapper (see EMDriver.TOKENIZED_CORPUS_KEY).
+ *
+ * Serialized as vint length followed by length vint token ids (see WritableUtils.writeVInt), so a token id
+ * below 128 takes one byte, one below 256 two bytes and one below 65536 three bytes.
+ */
+public class EncodedObservationSequence implements Writable {
+
+	private int[] tokenIds = new int[0];
+
+	public EncodedObservationSequence() {
+	}
+
+	public EncodedObservationSequence(int[] tokenIds) {
+		this.tokenIds = tokenIds;
+	}
+
+	/**
+	 * Returns the token ids. The array is replaced, not overwritten, by readFields, so callers may keep it.
+	 */
+	public int[] getTokenIds() {
+		return tokenIds;
+	}
+
+	public void setTokenIds(int[] tokenIds) {
+		this.tokenIds = tokenIds;
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		tokenIds = new int[WritableUtils.readVInt(in)];
+		for (int i = 0; i < tokenIds.length; i++) {
+			tokenIds[i] = WritableUtils.readVInt(in);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, tokenIds.length);
+		for (int tokenId : tokenIds) {
+			WritableUtils.writeVInt(out, tokenId);
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Combiner for the EM job.
+ * Input/Output -
+ * key: EMParameterKey identifying a transition, emission, or the alpha
+ * value: expected log count (or log alpha)
+ *
+ * Sums (in log space) the expected log counts of each transition or emission, and multiplies (adds in log
+ * space) the alphas, so that each mapper ships at most one record per model parameter and one alpha to the
+ * MaximizationReducer.
+ */
+public class ExpectationCombiner extends MapReduceBase implements
+		Reducer<EMParameterKey, DoubleWritable, EMParameterKey, DoubleWritable> {
+
+	private final DoubleWritable outputValue = new DoubleWritable();
+
+	@Override
+	public void reduce(EMParameterKey key, Iterator<DoubleWritable> expectedLogCounts,
+			OutputCollector<EMParameterKey, DoubleWritable> output, Reporter reporter) throws IOException {
+		if (key.getParameterType() == EMModelParameter.TYPE_ALPHA) {
+			double totalLogAlpha = 0.0;
+			while (expectedLogCounts.hasNext()) {
+				totalLogAlpha += expectedLogCounts.next().get();
+			}
+
+			outputValue.set(totalLogAlpha);
+		} else {
+			double logCount = LogMath.LOG_ZERO;
+			while (expectedLogCounts.hasNext()) {
+				logCount = LogMath.log2Add(logCount, expectedLogCounts.next().get());
+			}
+
+			outputValue.set(logCount);
+		}
+
+		output.collect(key, outputValue);
+	}
+
+}
@@ -1,401 +1,291 @@
 package edu.dartmouth.hmmem;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+
+import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class ExpectationMapper extends MapReduceBase implements Mapper<LongWritable, Text, Text, EMModelParameter> {
+public class ExpectationMapper extends MapReduceBase implements
+		Mapper<LongWritable, Writable, EMParameterKey, DoubleWritable> {
 
-	private static final Logger LOGGER = Logger.getLogger(ExpectationMapper.class.toString());
+	private static final Logger logger = LoggerFactory.getLogger(ExpectationMapper.class);
 
 	public static final String BUCKET_URI_KEY = "bucket_uri";
 	public static final String MODEL_PARAMETERS_DIR_PATH_KEY = "model_parameters_file_path";
 	public static final String START_STATE_KEY = "start_state";
+	/**
+	 * If true (the default), the expected counts and log alpha of every sequence in the input split are summed in
+	 * the mapper and output once in close(), so that map output scales with the number of model parameters
+	 * instead of with the number of sequences. If false, the counts are output after every sequence.
+	 */
+	public static final String IN_MAPPER_COMBINING_KEY = "hmmem.in_mapper_combining";
+	/**
+	 * If true, the EM and Viterbi tasks log a line per sequence (and the Viterbi mapper its model and matrices).
+	 * Off by default; the EMCounters are always maintained.
+	 */
+	public static final String TRACE_KEY = "hmmem.trace";
+	/**
+	 * Number of threads running map() in each map task (default 1). Above 1, EMDriver runs the mapper with
+	 * MultithreadedMapRunner: the sequences of the split are handed to a pool of threads that share the model,
+	 * each with its own forward-backward kernel and expected counts, which are merged once in close().
+	 */
+	public static final String MAP_THREADS_KEY = "hmmem.map_threads";
+	/**
+	 * Random seed numbers of the models the job trains, and the model parameters directories of their previous
+	 * iteration, in the same order. Every sequence is run through all of the models, so that the corpus is read
+	 * once per iteration for any number of random restarts, and the counts of each model are keyed by its seed.
+	 * Without MODEL_PARAMETERS_DIR_PATHS_KEY, the job trains the single model of MODEL_PARAMETERS_DIR_PATH_KEY
+	 * with seed 0.
+	 */
+	public static final String MODEL_SEEDS_KEY = "hmmem.model_seeds";
+	public static final String MODEL_PARAMETERS_DIR_PATHS_KEY = "hmmem.model_parameters_dir_paths";
+	/**
+	 * Random seed numbers of the models (a subset of MODEL_SEEDS_KEY) whose Viterbi taggings the job also writes,
+	 * with the model it runs forward-backward with, to the multi named output VITERBI_NAMED_OUTPUT, so that the
+	 * tagging of a converged model needs no job of its own (see EMDriver.FUSED_VITERBI_KEY). The taggings of the
+	 * model with seed s go to the files "viterbi_s-m-*" of the job output directory.
+	 */
+	public static final String VITERBI_SEEDS_KEY = "hmmem.viterbi_seeds";
+	public static final String VITERBI_NAMED_OUTPUT = "viterbi";
+
+	private HmmModel[] models;
+	private int[] seeds;
+	private JobConf job;
+	// Whether the job writes the Viterbi taggings of each model, and where to.
+	private boolean[] viterbiModels;
+	private MultipleOutputs multipleOutputs;
+
+	// The kernel and counts of each thread running map(), all registered in workers so close() can merge them.
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final ThreadLocal<Worker> threadWorker = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			Worker worker = new Worker(models.length);
+			for (int i = 0; i < models.length; i++) {
+				worker.forwardBackwards[i] = ForwardBackward.create(job, models[i]);
+				worker.expectedCounts[i] = new ExpectedCounts(models[i], seeds[i]);
+				if (viterbiModels[i]) {
+					worker.decoders[i] = new ViterbiDecoder(models[i]);
+				}
+			}
+			synchronized (workers) {
+				workers.add(worker);
+			}
+			return worker;
+		}
+	};
 
-	private final Map<StringPair, Double> transLogProbMap = new HashMap<>();
-	private final Map<StringPair, Double> emisLogProbMap = new HashMap<>();
-
-	private Set<String> stateSet;
-	private String startState;
+	private boolean inMapperCombining;
+	private OutputCollector<EMParameterKey, DoubleWritable> output;
+	private Reporter reporter;
+	private boolean trace;
 
 	private boolean failure = false;
 	private String failureString;
 
 	@Override
-	public void map(LongWritable key, Text value, OutputCollector<Text, EMModelParameter> output, Reporter reporter)
-			throws IOException {
-		LOGGER.log(Level.INFO, "ExpectationMapper");
-
-		System.err.println("~~~~~~~~~~~~~ExpectationMapper~~~~~~~~~~~~~");
-
+	public void map(LongWritable key, Writable value, OutputCollector<EMParameterKey, DoubleWritable> output,
+			Reporter reporter) throws IOException {
 		if (failure) {
 			throw new IOException(failureString);
 		}
 
-		// Create the observation sequence list from the input line.
-		String observationSequenceString = value.toString();
-		String[] observationSequenceArray = observationSequenceString.trim().split("\\s+");
-
-		List<String> observationSequence = new ArrayList<String>();
-		for (String obs : observationSequenceArray) {
-			String trimmedObs = obs.trim();
-			if (trimmedObs.length() != 0) {
-				observationSequence.add(trimmedObs);
+		// The input is either a line of the text corpus or a sequence of the tokenized corpus. All models share the
+		// token ids of the model of iteration 0.
+		int[] observations;
+		if (value instanceof EncodedObservationSequence) {
+			observations = ((EncodedObservationSequence) value).getTokenIds();
+		} else {
+			observations = TokenizerMapper.encodeLine(models[0], value.toString(), reporter);
+			if (observations == null) {
+				return;
 			}
 		}
 
-		if (observationSequence.size() == 0) {
-			return;
-		}
-
-		// Calculate the forward and backward matrices for the observation sequence.
-		Map<String, Double[]> forwardMatrix = calculateForwardMatrix(observationSequence, transLogProbMap,
-				emisLogProbMap, stateSet, startState);
-		Map<String, Double[]> backwardMatrix = calculateBackwardMatrix(observationSequence, transLogProbMap,
-				emisLogProbMap, stateSet, startState);
-
-		// Output the total alpha for the observation sequence under the given model.
-		Double logAlpha = getLogAlpha(forwardMatrix);
-		if (logAlpha != null) {
-			EMModelParameter alpha = EMModelParameter.makeAlphaObject(logAlpha);
-			System.out.println("Log alpha: " + logAlpha);
-			System.out.println("Alpha object: " + alpha);
-			output.collect(EMModelParameter.ALPHA_DUMMY_TEXT, alpha);
-		}
-
-		// Calculate the transition and emission counts for the observation sequence under the given model.
-		Map<StringPair, Double> transLogCounts = calculateLogTransitionCounts(forwardMatrix, backwardMatrix, logAlpha,
-				transLogProbMap, emisLogProbMap, observationSequence, stateSet, startState);
-		Map<StringPair, Double> emisLogCounts = calculateLogEmissionCounts(forwardMatrix, backwardMatrix, logAlpha,
-				observationSequence, stateSet);
+		reporter.incrCounter(EMCounters.SEQUENCES, 1);
+		reporter.incrCounter(EMCounters.TOKENS, observations.length);
 
-		// Output the transition and emission counts.
-		outputTransitionLogCounts(transLogCounts, output);
-		outputEmissionLogCounts(emisLogCounts, output);
-	}
+		// Run forward-backward to get the total alpha and the expected transition and emission counts for the
+		// observation sequence under each model, and output them unless they are combined until close().
+		Worker worker = threadWorker.get();
+		for (int i = 0; i < models.length; i++) {
+			long startNanos = System.nanoTime();
+			double logAlpha = worker.forwardBackwards[i].accumulate(observations, worker.expectedCounts[i]);
+			long forwardBackwardNanos = System.nanoTime() - startNanos;
 
-	/**
-	 * Runs before each map. Obtains the path to the model parameters file from the job conf. Then
-	 * parses the file and fills in the transition and emission log probabilities maps.
-	 */
-	@Override
-	public void configure(JobConf job) {
-		try {
-			LOGGER.log(Level.INFO, "Configure");
-
-			System.err.println("~~~~~~~~~~~~~Configure~~~~~~~~~~~~~");
-
-			URI bucketURI = new URI(job.get(BUCKET_URI_KEY));
-
-			FileSystem fs;
-			fs = NativeS3FileSystem.get(bucketURI, new Configuration());
+			reporter.incrCounter(EMCounters.FORWARD_BACKWARD_NANOS, forwardBackwardNanos);
+			if (logAlpha == Double.NEGATIVE_INFINITY) {
+				reporter.incrCounter(EMCounters.ZERO_PROBABILITY_SEQUENCES, 1);
+			}
 
-			Path modelParametersDirPath = new Path(job.get(MODEL_PARAMETERS_DIR_PATH_KEY));
-			FileStatus[] modelParameterFileStatuses;
-			modelParameterFileStatuses = fs.listStatus(modelParametersDirPath);
+			if (trace) {
+				logger.info("Sequence at " + key + ", seed " + seeds[i] + ": " + observations.length
+						+ " tokens, log alpha " + logAlpha + ", " + forwardBackwardNanos + " ns");
+			}
 
-			for (FileStatus modelParameterFileStatus : modelParameterFileStatuses) {
-				LOGGER.log(Level.INFO, "Parsing model parameters file: " + modelParameterFileStatus.getPath());
+			if (viterbiModels[i] && logAlpha != Double.NEGATIVE_INFINITY) {
+				collectViterbiTagging(key, observations, i, worker, reporter);
+			}
+		}
 
-				if (!modelParameterFileStatus.getPath().getName().equals(MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME)) {
-					FSDataInputStream modelParametersIn = fs.open(modelParameterFileStatus.getPath());
-					StaticUtil.readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
+		this.reporter = reporter;
+		if (inMapperCombining) {
+			this.output = output;
+		} else {
+			synchronized (output) {
+				for (ExpectedCounts expectedCounts : worker.expectedCounts) {
+					collectCounts(expectedCounts, output, reporter);
 				}
 			}
-
-			LOGGER.log(Level.INFO, "End of configure()");
-		} catch (Exception e) {
-			failure = true;
-			failureString = e.toString();
-
-			LOGGER.log(Level.SEVERE, failureString);
 		}
-
-		// Set stateSet and startState.
-		startState = job.get(START_STATE_KEY);
-		stateSet = StaticUtil.makeStateSetFromTransDict(transLogProbMap);
 	}
 
 	/**
-	 * Calculates the forward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible previous taggings
-	 * of the probability of observation i given this state X.
+	 * Outputs the counts combined over the whole input split, and over all threads, if in-mapper combining is
+	 * enabled, and reports the pruning statistics of the forward-backward kernels.
 	 */
-	private static Map<String, Double[]> calculateForwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet,
-			String startState) {
-		int numObs = observationSequence.size();
-
-		Map<String, Double[]> forwardMatrix = new HashMap<String, Double[]>();
-
-		for (String state : stateSet) {
-			forwardMatrix.put(state, new Double[numObs]);
+	@Override
+	public void close() throws IOException {
+		if (multipleOutputs != null) {
+			multipleOutputs.close();
 		}
 
-		// Begin by filling out the matrix for the first observation. This requires
-		// a special case because we start out at startState with a probability of 1.0.
-		for (String state : stateSet) {
-			// P(state|#) * P(firstObservation|state)
-			StringPair transStringPair = new StringPair(startState, state);
-			Double logProbStateGivenStart = transLogProbDict.get(transStringPair);
-
-			StringPair emisStringPair = new StringPair(state, observationSequence.get(0));
-			Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-			Double logProb = StaticUtil.calcLogProductOfLogs(logProbStateGivenStart, logProbObsGivenState);
-			forwardMatrix.get(state)[0] = logProb;
+		if (workers.isEmpty()) {
+			return;
 		}
 
-		// Now complete the rest of the matrix.
-		for (int i = 1; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all previous states.
-
-				// The emission probability is the same given one state.
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double logProbObsGivenState = emisLogProbDict.get(emisStringPair);
-
-				for (String prevState : stateSet) {
-					// P(state|prevState) * P(obs|state) * Forward(i-1, prevState)
-					StringPair transStringPair = new StringPair(prevState, state);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
+		for (int i = 0; i < models.length; i++) {
+			ExpectedCounts expectedCounts = workers.get(0).expectedCounts[i];
+			for (int j = 1; j < workers.size(); j++) {
+				expectedCounts.add(workers.get(j).expectedCounts[i]);
+			}
 
-					Double prevObsPrevStateForwardLogProb = forwardMatrix.get(prevState)[i - 1];
+			if (output != null) {
+				collectCounts(expectedCounts, output, reporter);
+			}
+		}
 
-					Double newLogProb = StaticUtil.calcLogProductOfLogs(
-							StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbObsGivenState),
-							prevObsPrevStateForwardLogProb);
-					totalLogProb = StaticUtil.calcLogSumOfLogs(totalLogProb, newLogProb);
+		if (reporter != null) {
+			for (Worker worker : workers) {
+				for (ForwardBackward forwardBackward : worker.forwardBackwards) {
+					reporter.incrCounter(EMCounters.BEAM_KEPT_CELLS, forwardBackward.getNumKeptCells());
+					reporter.incrCounter(EMCounters.BEAM_PRUNED_CELLS, forwardBackward.getNumPrunedCells());
 				}
-
-				forwardMatrix.get(state)[i] = totalLogProb;
 			}
 		}
-
-		return forwardMatrix;
 	}
 
 	/**
-	 * Calculates the backward matrix given an observation sequence and model parameters.
-	 * Returns a dictionary mapping each state X to an array of log probabilities, where each
-	 * log probability at index i corresponds to the sum over all possible subsequent taggings
-	 * given this state X, not including the observation i.
+	 * Decodes the observation sequence with the given model and writes its Viterbi tagging to the model's part of
+	 * the Viterbi named output.
 	 */
-	private static Map<String, Double[]> calculateBackwardMatrix(List<String> observationSequence,
-			Map<StringPair, Double> transLogProbDict, Map<StringPair, Double> emisLogProbDict, Set<String> stateSet,
-			String startState) {
-		int numObs = observationSequence.size();
-
-		Map<String, Double[]> backwardMatrix = new HashMap<String, Double[]>();
-
-		for (String state : stateSet) {
-			backwardMatrix.put(state, new Double[numObs]);
+	@SuppressWarnings("unchecked")
+	private void collectViterbiTagging(LongWritable key, int[] observations, int modelIndex, Worker worker,
+			Reporter reporter) throws IOException {
+		if (worker.states.length < observations.length) {
+			worker.states = new int[observations.length];
 		}
 
-		// Begin by filling out the matrix for the last observation. This requires
-		// a special case because we start out with a subsequent taggings probability of 1.0.
-		for (String state : stateSet) {
-			backwardMatrix.get(state)[numObs - 1] = Math.log(1.0) / Math.log(2);
-		}
-
-		// Now complete the rest of the matrix.
-		for (int i = numObs - 2; i >= 0; i--) {
-			String nextObs = observationSequence.get(i + 1);
-
-			for (String state : stateSet) {
-				Double totalLogProb = null; // Probability starts out as 0 and accumulates from all next states.
+		long startNanos = System.nanoTime();
+		worker.decoders[modelIndex].decode(observations, worker.states);
+		reporter.incrCounter(EMCounters.VITERBI_NANOS, System.nanoTime() - startNanos);
+		reporter.incrCounter(EMCounters.TAGGED_SEQUENCES, 1);
+		reporter.incrCounter(EMCounters.TAGGED_TOKENS, observations.length);
 
-				for (String nextState : stateSet) {
-					// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
-					StringPair transStringPair = new StringPair(state, nextState);
-					Double logProbStateGivenPrevState = transLogProbDict.get(transStringPair);
-
-					StringPair emisStringPair = new StringPair(nextState, nextObs);
-					Double logProbNextObsGivenNextState = emisLogProbDict.get(emisStringPair);
-
-					Double nextObsNextStateBackwardLogProb = backwardMatrix.get(nextState)[i + 1];
-
-					Double newLogProb = StaticUtil.calcLogProductOfLogs(
-							StaticUtil.calcLogProductOfLogs(logProbStateGivenPrevState, logProbNextObsGivenNextState),
-							nextObsNextStateBackwardLogProb);
-					totalLogProb = StaticUtil.calcLogSumOfLogs(totalLogProb, newLogProb);
-				}
-
-				backwardMatrix.get(state)[i] = totalLogProb;
-			}
+		worker.viterbiTagging.set(key, models[modelIndex], observations, worker.states);
+		synchronized (multipleOutputs) {
+			multipleOutputs.getCollector(VITERBI_NAMED_OUTPUT, Integer.toString(seeds[modelIndex]), reporter).collect(
+					NullWritable.get(), worker.viterbiTagging);
 		}
+	}
 
-		return backwardMatrix;
+	private void collectCounts(ExpectedCounts expectedCounts, OutputCollector<EMParameterKey, DoubleWritable> output,
+			Reporter reporter) throws IOException {
+		long startNanos = System.nanoTime();
+		int numRecords = expectedCounts.collect(output);
+		expectedCounts.clear();
+
+		reporter.incrCounter(EMCounters.EMITTED_RECORDS, numRecords);
+		reporter.incrCounter(EMCounters.COLLECT_NANOS, System.nanoTime() - startNanos);
 	}
 
 	/**
-	 * Calculates the transition counts for an observation sequence.
+	 * Runs before each map. Loads the model parameters of the previous iteration of every model (see
+	 * HmmModelFile.load), or reuses them if an earlier task in the same JVM loaded them. The forward-backward
+	 * kernels and counts of each thread are set up on its first sequence.
 	 */
-	private static Map<StringPair, Double> calculateLogTransitionCounts(Map<String, Double[]> forwardMatrix,
-			Map<String, Double[]> backwardMatrix, Double logAlpha, Map<StringPair, Double> transLogProbDict,
-			Map<StringPair, Double> emisLogProbDict, List<String> observationSequence, Set<String> stateSet,
-			String startState) {
-		Map<StringPair, Double> logTransCounts = new HashMap<StringPair, Double>();
-
-		int numObs = observationSequence.size();
-
-		// Calculate the transition counts from #.
-		for (String state : stateSet) {
-			Double forwardLogProb = forwardMatrix.get(state)[0];
-			Double backwardLogProb = backwardMatrix.get(state)[0];
-
-			Double logProbStateGivenStart = StaticUtil.calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-			StringPair transStringPair = new StringPair(startState, state);
+	@Override
+	public void configure(JobConf job) {
+		this.job = job;
 
-			if (logProbStateGivenStart != null) {
-				logTransCounts.put(transStringPair, logProbStateGivenStart);
+		try {
+			if (job.get(MODEL_PARAMETERS_DIR_PATHS_KEY) != null) {
+				models = ModelCache.getAll(job);
+				seeds = getSeeds(job);
+			} else {
+				models = new HmmModel[] { ModelCache.get(job) };
+				seeds = new int[] { 0 };
 			}
-		}
-
-		// Calculate transition counts for the rest of the transitions.
-		for (int i = 0; i < numObs - 1; i++) {
-			String nextObs = observationSequence.get(i + 1);
-
-			for (String fromState : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(fromState)[i];
-
-				for (String toState : stateSet) {
-					Double backwardLogProb = backwardMatrix.get(toState)[i + 1];
-
-					StringPair transStringPair = new StringPair(fromState, toState);
-					Double transLogProb = transLogProbDict.get(transStringPair);
-
-					StringPair emisStringPair = new StringPair(toState, nextObs);
-					Double emisLogProb = emisLogProbDict.get(emisStringPair);
 
-					Double logProbToStateGivenFromState = StaticUtil.calcLogProductOfLogs(
-							StaticUtil.calcLogProductOfLogs(
-									StaticUtil.calcLogProductOfLogs(forwardLogProb, transLogProb), emisLogProb),
-							backwardLogProb);
-					Double prevLogTransCount = logTransCounts.get(transStringPair);
-					Double sumLogTransCount = StaticUtil.calcLogSumOfLogs(prevLogTransCount,
-							logProbToStateGivenFromState);
-
-					if (sumLogTransCount != null) {
-						logTransCounts.put(transStringPair, sumLogTransCount);
-					}
+			viterbiModels = new boolean[seeds.length];
+			for (String viterbiSeedStr : job.getStrings(VITERBI_SEEDS_KEY, new String[0])) {
+				for (int i = 0; i < seeds.length; i++) {
+					viterbiModels[i] |= seeds[i] == Integer.parseInt(viterbiSeedStr.trim());
 				}
 			}
-		}
-
-		// Go through and divide all counts by alpha, so that all observation sequences are weighted equally.
-		for (Entry<StringPair, Double> entry : logTransCounts.entrySet()) {
-			logTransCounts.put(entry.getKey(), entry.getValue() - logAlpha);
-		}
-
-		return logTransCounts;
-	}
-
-	/**
-	 * Calculates the emission counts for an observation sequence.
-	 */
-	private static Map<StringPair, Double> calculateLogEmissionCounts(Map<String, Double[]> forwardMatrix,
-			Map<String, Double[]> backwardMatrix, Double logAlpha, List<String> observationSequence,
-			Set<String> stateSet) {
-		Map<StringPair, Double> logEmisCounts = new HashMap<StringPair, Double>();
-
-		int numObs = observationSequence.size();
-		for (int i = 0; i < numObs; i++) {
-			String obs = observationSequence.get(i);
-
-			for (String state : stateSet) {
-				Double forwardLogProb = forwardMatrix.get(state)[i];
-				Double backwardLogProb = backwardMatrix.get(state)[i];
-
-				Double logProbObsGivenState = StaticUtil.calcLogProductOfLogs(forwardLogProb, backwardLogProb);
-				StringPair emisStringPair = new StringPair(state, obs);
-				Double prevLogEmisCount = logEmisCounts.get(emisStringPair);
-				Double sumLogEmisCount = StaticUtil.calcLogSumOfLogs(prevLogEmisCount, logProbObsGivenState);
-
-				if (sumLogEmisCount != null) {
-					logEmisCounts.put(emisStringPair, sumLogEmisCount);
-				}
+			if (job.get(VITERBI_SEEDS_KEY) != null) {
+				multipleOutputs = new MultipleOutputs(job);
 			}
-		}
+		} catch (Exception e) {
+			failure = true;
+			failureString = e.toString();
 
-		// Go through and divide all counts by alpha, so that all observation sequences are weighted equally.
-		for (Entry<StringPair, Double> entry : logEmisCounts.entrySet()) {
-			logEmisCounts.put(entry.getKey(), entry.getValue() - logAlpha);
+			logger.error(failureString);
 		}
 
-		return logEmisCounts;
+		inMapperCombining = job.getBoolean(IN_MAPPER_COMBINING_KEY, true);
+		trace = job.getBoolean(TRACE_KEY, false);
 	}
 
 	/**
-	 * Returns the log alpha for the observation sequence under the given model, or null if alpha == 0.
+	 * Returns the random seed numbers of MODEL_SEEDS_KEY.
 	 */
-	private static Double getLogAlpha(Map<String, Double[]> forwardMatrix) {
-		Double logAlpha = null;
-
-		for (Entry<String, Double[]> entry : forwardMatrix.entrySet()) {
-			Double[] logProbArray = entry.getValue();
-			Double lastLogProb = entry.getValue()[logProbArray.length - 1];
-
-			logAlpha = StaticUtil.calcLogSumOfLogs(logAlpha, lastLogProb);
+	public static int[] getSeeds(JobConf job) {
+		String[] seedStrs = job.getStrings(MODEL_SEEDS_KEY);
+		int[] seeds = new int[seedStrs.length];
+		for (int i = 0; i < seeds.length; i++) {
+			seeds[i] = Integer.parseInt(seedStrs[i].trim());
 		}
-
-		return logAlpha;
+		return seeds;
 	}
 
-	/**
-	 * Outputs the transition log counts as EMModelParameters.
-	 */
-	private static void outputTransitionLogCounts(Map<StringPair, Double> transLogCounts,
-			OutputCollector<Text, EMModelParameter> output) throws IOException {
-		outputLogCounts(transLogCounts, output, EMModelParameter.PARAMETER_TYPE_TRANSITION);
-	}
+	private static class Worker {
 
-	/**
-	 * Outputs the emission log counts as EMModelParameters.
-	 */
-	private static void outputEmissionLogCounts(Map<StringPair, Double> emisLogCounts,
-			OutputCollector<Text, EMModelParameter> output) throws IOException {
-		outputLogCounts(emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION);
-	}
+		// One kernel and one set of counts per model, and a Viterbi decoder per model that is tagged.
+		private final ForwardBackward[] forwardBackwards;
+		private final ExpectedCounts[] expectedCounts;
+		private final ViterbiDecoder[] decoders;
+		private int[] states = new int[0];
+		private final TaggedObservationSequence viterbiTagging = new TaggedObservationSequence();
 
-	/**
-	 * Outputs the log counts as EMModelParameters.
-	 */
-	private static void outputLogCounts(Map<StringPair, Double> logCounts,
-			OutputCollector<Text, EMModelParameter> output, char parameterType) throws IOException {
-		for (Entry<StringPair, Double> entry : logCounts.entrySet()) {
-			if (entry.getValue() != null) { // Only output if prob > 0.
-				EMModelParameter param = new EMModelParameter(parameterType, new Text(entry.getKey().getX()), new Text(
-						entry.getKey().getY()), entry.getValue());
-				System.out.println("Log count: " + entry.getValue());
-				System.out.println("Param: " + param);
-				output.collect(param.getTransFromStateOrEmisState(), param);
-			}
+		private Worker(int numModels) {
+			forwardBackwards = new ForwardBackward[numModels];
+			expectedCounts = new ExpectedCounts[numModels];
+			decoders = new ViterbiDecoder[numModels];
 		}
+
 	}
 
 }
@@ -0,0 +1,192 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.mapred.OutputCollector;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Expected transition and emission counts accumulated by the ForwardBackward kernel.
+ *
+ * The counts are already divided by the alpha of their observation sequence, so each one is a posterior
+ * probability summed over positions and is kept in linear space. They are only converted to base 2 log
+ * counts when output. The log alpha of every accumulated sequence is summed, i.e. the alphas are multiplied.
+ *
+ * Arrays use the same layout as the corresponding HmmModel arrays. The counts are output with the random seed
+ * number of their model (see EMParameterKey).
+ */
+public class ExpectedCounts {
+
+	private final HmmModel model;
+
+	private final double[] startCounts;
+	private final double[] transCounts;
+	private final double[] emisCounts;
+
+	// Tokens with (possibly) non-zero emission counts, so that clearing and output do not scan the vocabulary.
+	private final boolean[] tokenMarked;
+	private final int[] markedTokens;
+	private int numMarkedTokens = 0;
+
+	private double logAlpha = 0.0;
+	private int numSequences = 0;
+
+	private final EMParameterKey outputKey = new EMParameterKey();
+	private int numCollectedRecords;
+	private final DoubleWritable outputValue = new DoubleWritable();
+
+	public ExpectedCounts(HmmModel model) {
+		this(model, 0);
+	}
+
+	public ExpectedCounts(HmmModel model, int seed) {
+		this.model = model;
+		outputKey.setSeed(seed);
+
+		int numStates = model.getNumStates();
+		startCounts = new double[numStates];
+		transCounts = new double[numStates * numStates];
+		emisCounts = new double[model.getNumTokens() * numStates];
+
+		tokenMarked = new boolean[model.getNumTokens()];
+		markedTokens = new int[model.getNumTokens()];
+	}
+
+	public double[] getStartCounts() {
+		return startCounts;
+	}
+
+	public double[] getTransCounts() {
+		return transCounts;
+	}
+
+	public double[] getEmisCounts() {
+		return emisCounts;
+	}
+
+	public void markToken(int tokenId) {
+		if (!tokenMarked[tokenId]) {
+			tokenMarked[tokenId] = true;
+			markedTokens[numMarkedTokens++] = tokenId;
+		}
+	}
+
+	public void addLogAlpha(double sequenceLogAlpha) {
+		logAlpha += sequenceLogAlpha;
+		numSequences++;
+	}
+
+	public double getLogAlpha() {
+		return logAlpha;
+	}
+
+	public int getNumSequences() {
+		return numSequences;
+	}
+
+	/**
+	 * Adds the counts and log alpha of other, which must be over the same model, to these counts.
+	 */
+	public void add(ExpectedCounts other) {
+		int numStates = model.getNumStates();
+
+		for (int state = 0; state < numStates; state++) {
+			startCounts[state] += other.startCounts[state];
+		}
+		for (int i = 0; i < transCounts.length; i++) {
+			transCounts[i] += other.transCounts[i];
+		}
+
+		for (int i = 0; i < other.numMarkedTokens; i++) {
+			int tokenId = other.markedTokens[i];
+			markToken(tokenId);
+			for (int offset = tokenId * numStates; offset < (tokenId + 1) * numStates; offset++) {
+				emisCounts[offset] += other.emisCounts[offset];
+			}
+		}
+
+		logAlpha += other.logAlpha;
+		numSequences += other.numSequences;
+	}
+
+	/**
+	 * Resets all counts to 0.
+	 */
+	public void clear() {
+		int numStates = model.getNumStates();
+
+		Arrays.fill(startCounts, 0.0);
+		Arrays.fill(transCounts, 0.0);
+
+		for (int i = 0; i < numMarkedTokens; i++) {
+			int tokenId = markedTokens[i];
+			Arrays.fill(emisCounts, tokenId * numStates, (tokenId + 1) * numStates, 0.0);
+			tokenMarked[tokenId] = false;
+		}
+		numMarkedTokens = 0;
+
+		logAlpha = 0.0;
+		numSequences = 0;
+	}
+
+	/**
+	 * Outputs the total alpha and every non-zero transition and emission log count, keyed by the ids of the
+	 * parameter. The same key and value objects are reused for every record. Returns the number of records
+	 * output.
+	 */
+	public int collect(OutputCollector<EMParameterKey, DoubleWritable> output) throws IOException {
+		if (numSequences == 0) {
+			return 0;
+		}
+
+		outputKey.setAlpha();
+		outputValue.set(logAlpha);
+		output.collect(outputKey, outputValue);
+		numCollectedRecords = 1;
+
+		int numStates = model.getNumStates();
+		int startStateId = model.getStartStateId();
+
+		// Transitions from the start state, if the start state is not also a regular state.
+		if (startStateId < 0) {
+			for (int toState = 0; toState < numStates; toState++) {
+				collectLogCount(output, EMModelParameter.PARAMETER_TYPE_TRANSITION, -1, toState, startCounts[toState]);
+			}
+		}
+
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			for (int toState = 0; toState < numStates; toState++) {
+				double count = transCounts[fromState * numStates + toState];
+				if (fromState == startStateId) {
+					count += startCounts[toState];
+				}
+
+				collectLogCount(output, EMModelParameter.PARAMETER_TYPE_TRANSITION, fromState, toState, count);
+			}
+		}
+
+		for (int i = 0; i < numMarkedTokens; i++) {
+			int tokenId = markedTokens[i];
+			for (int state = 0; state < numStates; state++) {
+				collectLogCount(output, EMModelParameter.PARAMETER_TYPE_EMISSION, state, tokenId,
+						emisCounts[tokenId * numStates + state]);
+			}
+		}
+
+		return numCollectedRecords;
+	}
+
+	private void collectLogCount(OutputCollector<EMParameterKey, DoubleWritable> output, char parameterType,
+			int fromId, int toId, double count) throws IOException {
+		if (count > 0) { // Only output if prob > 0.
+			outputKey.set(parameterType, fromId, toId);
+			outputValue.set(LogMath.log2(count));
+			output.collect(outputKey, outputValue);
+			numCollectedRecords++;
+		}
+	}
+
+}
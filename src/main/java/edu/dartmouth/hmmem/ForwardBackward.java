@@ -0,0 +1,116 @@
+package edu.dartmouth.hmmem;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Forward-backward kernel over an integer-indexed HmmModel. The implementation is chosen with KERNEL_KEY.
+ *
+ * An instance keeps its matrices between sequences and is not thread safe.
+ */
+public abstract class ForwardBackward {
+
+	/**
+	 * Forward-backward implementation: "log" (the default) for LogForwardBackward, which adds in log space,
+	 * "scaled" for ScaledForwardBackward, which works in linear space with per-position scaling, "checkpointed" for
+	 * CheckpointedForwardBackward, which does the same in O(N * sqrt(T)) memory for very long sequences, "parallel"
+	 * for ParallelForwardBackward, which splits very long sequences into segments processed by several threads, or
+	 * "beam" for the approximate BeamForwardBackward, which prunes unlikely states at each position.
+	 */
+	public static final String KERNEL_KEY = "hmmem.forward_backward.kernel";
+	public static final String LOG_KERNEL = "log";
+	public static final String SCALED_KERNEL = "scaled";
+	public static final String CHECKPOINTED_KERNEL = "checkpointed";
+	public static final String PARALLEL_KERNEL = "parallel";
+	public static final String BEAM_KERNEL = "beam";
+
+	protected final HmmModel model;
+	protected final int numStates;
+	// Only the transitions with non-zero probability are visited.
+	protected final TransitionGraph graph;
+	// Only the states that can emit the observation at a position are visited.
+	protected final EmissionIndex emissionIndex;
+
+	protected ForwardBackward(HmmModel model) {
+		this.model = model;
+		numStates = model.getNumStates();
+		graph = model.getTransitionGraph();
+		emissionIndex = model.getEmissionIndex();
+	}
+
+	/**
+	 * Creates the forward-backward kernel selected in the configuration.
+	 */
+	public static ForwardBackward create(Configuration conf, HmmModel model) {
+		String kernel = conf.get(KERNEL_KEY, LOG_KERNEL);
+
+		if (kernel.equals(LOG_KERNEL)) {
+			return new LogForwardBackward(model);
+		} else if (kernel.equals(SCALED_KERNEL)) {
+			return new ScaledForwardBackward(model);
+		} else if (kernel.equals(CHECKPOINTED_KERNEL)) {
+			return new CheckpointedForwardBackward(model);
+		} else if (kernel.equals(PARALLEL_KERNEL)) {
+			return new ParallelForwardBackward(model,
+					conf.getInt(ParallelForwardBackward.THREADS_KEY, Runtime.getRuntime().availableProcessors()),
+					conf.getInt(ParallelForwardBackward.MIN_SEGMENT_LENGTH_KEY,
+							ParallelForwardBackward.DEFAULT_MIN_SEGMENT_LENGTH));
+		} else if (kernel.equals(BEAM_KERNEL)) {
+			return new BeamForwardBackward(model,
+					conf.getFloat(BeamForwardBackward.BEAM_KEY, BeamForwardBackward.DEFAULT_BEAM),
+					conf.getInt(BeamForwardBackward.TOP_K_KEY, 0));
+		}
+
+		throw new IllegalArgumentException("Unknown " + KERNEL_KEY + ": \"" + kernel + "\".");
+	}
+
+	/**
+	 * Creates the forward-backward kernel that computes the posteriors of a decoding job: the kernel selected in
+	 * the configuration if it computes them exactly in O(N * T) time, i.e. "log", "scaled" or "parallel", and
+	 * ScaledForwardBackward otherwise, so that an EM run with the "beam" or "checkpointed" kernel can still be
+	 * decoded exactly.
+	 */
+	public static ForwardBackward createForPosteriors(Configuration conf, HmmModel model) {
+		String kernel = conf.get(KERNEL_KEY, LOG_KERNEL);
+		if (kernel.equals(LOG_KERNEL) || kernel.equals(SCALED_KERNEL) || kernel.equals(PARALLEL_KERNEL)) {
+			return create(conf, model);
+		}
+		return new ScaledForwardBackward(model);
+	}
+
+	/**
+	 * Runs forward-backward over the observation sequence and adds the expected transition and emission counts,
+	 * each divided by alpha so that all observation sequences are weighted equally, to the given counts. Returns
+	 * the log alpha of the sequence, or Double.NEGATIVE_INFINITY if the sequence has probability 0 under the
+	 * model, in which case nothing is added.
+	 */
+	public abstract double accumulate(int[] observations, ExpectedCounts counts);
+
+	/**
+	 * Computes the posterior probability of every state at every position of the observation sequence, i.e. the
+	 * probability that the state emitted the observation given the whole sequence, into
+	 * posteriors[i * numStates + state], which must have room for every position. Returns the log alpha of the
+	 * sequence, or Double.NEGATIVE_INFINITY if the sequence has probability 0 under the model, in which case the
+	 * posteriors are undefined. Kernels that cannot compute exact posteriors throw UnsupportedOperationException
+	 * (see createForPosteriors).
+	 */
+	public double posteriors(int[] observations, double[] posteriors) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not compute posteriors.");
+	}
+
+	/**
+	 * Returns the number of (position, state) cells kept by pruning over all sequences so far. Exact kernels do
+	 * not prune and return 0.
+	 */
+	public long getNumKeptCells() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of (position, state) cells with non-zero forward probability that were pruned over all
+	 * sequences so far.
+	 */
+	public long getNumPrunedCells() {
+		return 0;
+	}
+
+}
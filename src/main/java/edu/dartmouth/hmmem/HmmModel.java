@@ -0,0 +1,352 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Integer-indexed view of the HMM model parameters.
+ *
+ * States and tokens are interned to dense int ids once, and the transition and emission log probabilities
+ * (base 2, as everywhere else in this package) are stored in flat primitive arrays. A log probability of
+ * Double.NEGATIVE_INFINITY stands for a probability of 0, i.e. a transition or emission that is not part
+ * of the model.
+ *
+ * Layout:
+ * startLogProbs[to] -- log P(to|startState)
+ * transLogProbs[from * numStates + to] -- log P(to|from)
+ * emisLogProbs[token * numStates + state] -- log P(token|state), token-major so that all states of one
+ * 		observation are contiguous.
+ */
+public class HmmModel {
+
+	private final String startState;
+	private final int startStateId;
+
+	private final String[] states;
+	private final Map<String, Integer> stateIds;
+
+	private final String[] tokens;
+	private final Map<String, Integer> tokenIds;
+
+	private final double[] startLogProbs;
+	private final double[] transLogProbs;
+	private final double[] emisLogProbs;
+
+	// Linear-space copies of the probability arrays, computed on first use.
+	private double[] startProbs;
+	private double[] transProbs;
+	private double[] emisProbs;
+
+	// Adjacency lists of the non-zero transitions, built on first use.
+	private TransitionGraph transitionGraph;
+	// Inverted index from tokens to the states emitting them, built on first use.
+	private EmissionIndex emissionIndex;
+
+	HmmModel(String startState, String[] states, String[] tokens) {
+		this.startState = startState;
+		this.states = states;
+		this.tokens = tokens;
+
+		stateIds = makeIdMap(states);
+		tokenIds = makeIdMap(tokens);
+
+		Integer startId = stateIds.get(startState);
+		startStateId = startId == null ? -1 : startId;
+
+		int numStates = states.length;
+		startLogProbs = makeLogZeroArray(numStates);
+		transLogProbs = makeLogZeroArray(numStates * numStates);
+		emisLogProbs = makeLogZeroArray(tokens.length * numStates);
+	}
+
+	/**
+	 * Builds the model from the transition and emission log probability maps read from the model parameter
+	 * files. The state set is the set of to states of the transitions (see StaticUtil.makeStateSetFromTransDict)
+	 * and the vocabulary is the set of tokens of the emissions. Both are sorted so ids are deterministic.
+	 */
+	public static HmmModel fromLogProbMaps(String startState, Map<StringPair, Double> transLogProbMap,
+			Map<StringPair, Double> emisLogProbMap) {
+		TreeSet<String> stateSet = new TreeSet<>(StaticUtil.makeStateSetFromTransDict(transLogProbMap));
+		TreeSet<String> tokenSet = new TreeSet<>();
+		for (StringPair stateToken : emisLogProbMap.keySet()) {
+			tokenSet.add(stateToken.getY());
+		}
+
+		HmmModel model = new HmmModel(startState, stateSet.toArray(new String[stateSet.size()]),
+				tokenSet.toArray(new String[tokenSet.size()]));
+		int numStates = model.getNumStates();
+
+		for (Entry<StringPair, Double> entry : transLogProbMap.entrySet()) {
+			Integer toId = model.stateIds.get(entry.getKey().getY());
+			if (entry.getValue() == null) {
+				continue;
+			}
+
+			if (entry.getKey().getX().equals(startState)) {
+				model.startLogProbs[toId] = entry.getValue();
+			}
+
+			Integer fromId = model.stateIds.get(entry.getKey().getX());
+			if (fromId != null) {
+				model.transLogProbs[fromId * numStates + toId] = entry.getValue();
+			}
+		}
+
+		for (Entry<StringPair, Double> entry : emisLogProbMap.entrySet()) {
+			Integer stateId = model.stateIds.get(entry.getKey().getX());
+			if (stateId == null || entry.getValue() == null) {
+				continue; // The state can never be reached, so its emissions are irrelevant.
+			}
+
+			int tokenId = model.tokenIds.get(entry.getKey().getY());
+			model.emisLogProbs[tokenId * numStates + stateId] = entry.getValue();
+		}
+
+		return model;
+	}
+
+	/**
+	 * Returns a model over the same states and tokens (i.e. with the same ids) in which every probability is 0.
+	 */
+	public HmmModel emptyCopy() {
+		return new HmmModel(startState, states, tokens);
+	}
+
+	/**
+	 * Sets log P(to|from). If from is the start state, the probability of starting in to is set as well.
+	 * A fromId of -1 stands for the start state when it is not a regular state.
+	 */
+	public void setTransLogProb(int fromId, int toId, double logProb) {
+		if (fromId == startStateId) {
+			startLogProbs[toId] = logProb;
+		}
+
+		if (fromId >= 0) {
+			transLogProbs[fromId * states.length + toId] = logProb;
+		}
+	}
+
+	public void setEmisLogProb(int stateId, int tokenId, double logProb) {
+		emisLogProbs[tokenId * states.length + stateId] = logProb;
+	}
+
+	/**
+	 * Fills in the given transition and emission log probability maps with every non-zero probability of the
+	 * model, in the form read from model parameter files.
+	 */
+	public void fillLogProbMaps(Map<StringPair, Double> transLogProbMap, Map<StringPair, Double> emisLogProbMap) {
+		int numStates = states.length;
+
+		if (startStateId < 0) {
+			for (int toId = 0; toId < numStates; toId++) {
+				if (startLogProbs[toId] != Double.NEGATIVE_INFINITY) {
+					transLogProbMap.put(new StringPair(startState, states[toId]), startLogProbs[toId]);
+				}
+			}
+		}
+
+		for (int i = 0; i < transLogProbs.length; i++) {
+			if (transLogProbs[i] != Double.NEGATIVE_INFINITY) {
+				transLogProbMap.put(new StringPair(states[i / numStates], states[i % numStates]), transLogProbs[i]);
+			}
+		}
+
+		for (int i = 0; i < emisLogProbs.length; i++) {
+			if (emisLogProbs[i] != Double.NEGATIVE_INFINITY) {
+				emisLogProbMap.put(new StringPair(states[i % numStates], tokens[i / numStates]), emisLogProbs[i]);
+			}
+		}
+	}
+
+	/**
+	 * Maps the observation sequence to token ids. Returns null if the sequence contains a token that no state
+	 * can emit, since the sequence then has probability 0 under the model.
+	 */
+	public int[] encodeObservationSequence(List<String> observationSequence) {
+		int[] observations = new int[observationSequence.size()];
+
+		for (int i = 0; i < observations.length; i++) {
+			Integer tokenId = tokenIds.get(observationSequence.get(i));
+			if (tokenId == null) {
+				return null;
+			}
+
+			observations[i] = tokenId;
+		}
+
+		return observations;
+	}
+
+	public String getStartState() {
+		return startState;
+	}
+
+	/**
+	 * Returns the id of the start state, or -1 if the start state is not reachable from any state.
+	 */
+	public int getStartStateId() {
+		return startStateId;
+	}
+
+	public int getNumStates() {
+		return states.length;
+	}
+
+	public int getNumTokens() {
+		return tokens.length;
+	}
+
+	/**
+	 * Returns the id of the given state, or -1 if it is not a state of the model.
+	 */
+	public int getStateId(String state) {
+		Integer stateId = stateIds.get(state);
+		return stateId == null ? -1 : stateId;
+	}
+
+	/**
+	 * Returns the id of the given token, or -1 if it is not in the vocabulary.
+	 */
+	public int getTokenId(String token) {
+		Integer tokenId = tokenIds.get(token);
+		return tokenId == null ? -1 : tokenId;
+	}
+
+	public String getState(int stateId) {
+		return states[stateId];
+	}
+
+	public String getToken(int tokenId) {
+		return tokens[tokenId];
+	}
+
+	public double[] getStartLogProbs() {
+		return startLogProbs;
+	}
+
+	public double[] getTransLogProbs() {
+		return transLogProbs;
+	}
+
+	public double[] getEmisLogProbs() {
+		return emisLogProbs;
+	}
+
+	/**
+	 * Returns the start probabilities in linear space. Like the other linear-space arrays, it is computed on first
+	 * use and does not reflect later changes to the log probabilities.
+	 */
+	public synchronized double[] getStartProbs() {
+		if (startProbs == null) {
+			startProbs = makeLinearArray(startLogProbs);
+		}
+		return startProbs;
+	}
+
+	public synchronized double[] getTransProbs() {
+		if (transProbs == null) {
+			transProbs = makeLinearArray(transLogProbs);
+		}
+		return transProbs;
+	}
+
+	public synchronized double[] getEmisProbs() {
+		if (emisProbs == null) {
+			emisProbs = makeLinearArray(emisLogProbs);
+		}
+		return emisProbs;
+	}
+
+	/**
+	 * Returns the adjacency lists of the transitions with non-zero probability. Like the linear-space arrays, the
+	 * graph is built on first use and does not reflect later changes to the log probabilities.
+	 */
+	public synchronized TransitionGraph getTransitionGraph() {
+		if (transitionGraph == null) {
+			transitionGraph = new TransitionGraph(this);
+		}
+		return transitionGraph;
+	}
+
+	/**
+	 * Returns the inverted index from tokens to the states that emit them with non-zero probability. It is built
+	 * on first use and does not reflect later changes to the log probabilities.
+	 */
+	public synchronized EmissionIndex getEmissionIndex() {
+		if (emissionIndex == null) {
+			emissionIndex = new EmissionIndex(this);
+		}
+		return emissionIndex;
+	}
+
+	/**
+	 * Builds the linear-space arrays, the transition graph and the emission index, which every forward-backward
+	 * kernel and Viterbi decoder over the model uses, so that estimateSizeInBytes accounts for them.
+	 */
+	public void buildDerivedStructures() {
+		getStartProbs();
+		getTransProbs();
+		getEmisProbs();
+		getTransitionGraph();
+		getEmissionIndex();
+	}
+
+	/**
+	 * Returns a rough estimate of the heap size of the model in bytes, including the linear-space arrays and other
+	 * structures built from it so far.
+	 */
+	public synchronized long estimateSizeInBytes() {
+		long size = 8L * (startLogProbs.length + transLogProbs.length + emisLogProbs.length);
+		for (double[] probs : new double[][] { startProbs, transProbs, emisProbs }) {
+			if (probs != null) {
+				size += 8L * probs.length;
+			}
+		}
+		if (transitionGraph != null) {
+			size += transitionGraph.estimateSizeInBytes();
+		}
+		if (emissionIndex != null) {
+			size += emissionIndex.estimateSizeInBytes();
+		}
+
+		// Each name is held by a String and a HashMap entry with a boxed id.
+		for (String[] names : new String[][] { states, tokens }) {
+			for (String name : names) {
+				size += 2L * name.length() + 120;
+			}
+		}
+
+		return size;
+	}
+
+	private static Map<String, Integer> makeIdMap(String[] names) {
+		Map<String, Integer> ids = new HashMap<>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			ids.put(names[i], i);
+		}
+
+		return ids;
+	}
+
+	private static double[] makeLinearArray(double[] logProbs) {
+		double[] probs = new double[logProbs.length];
+		for (int i = 0; i < logProbs.length; i++) {
+			probs[i] = LogMath.exp2(logProbs[i]);
+		}
+
+		return probs;
+	}
+
+	private static double[] makeLogZeroArray(int length) {
+		double[] array = new double[length];
+		Arrays.fill(array, Double.NEGATIVE_INFINITY);
+		return array;
+	}
+
+}
@@ -0,0 +1,337 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Versioned binary file format for an HmmModel, so that tasks load the model with a single bulk read instead of
+ * parsing the text model parameter files line by line.
+ *
+ * The states and tokens keep the ids they were given when the file for iteration 0 was written, so the file of
+ * every later iteration can be assembled from the id-coded part files of the reducers (see mergeParts).
+ *
+ * Layout (big-endian):
+ * int magic, int version
+ * string startState, int numStates, numStates x string, int numTokens, numTokens x string
+ * double[numStates] log P(state|startState)
+ * transitions by from state: int[numStates + 1] offsets, int[numTrans] to state ids, double[numTrans] log probs
+ * emissions by token: int[numTokens + 1] offsets, int[numEmis] state ids, double[numEmis] log probs
+ * where a string is an int byte length (-1 for null) followed by UTF-8 bytes. Zero probabilities are omitted.
+ */
+public class HmmModelFile {
+
+	public static final String FILE_NAME = "em_model_params.bin";
+	public static final String PART_FILE_NAME = "em_model_params";
+	public static final String PART_FILE_SUFFIX = ".bin";
+
+	public static final int VERSION = 1;
+	private static final int MAGIC = 0x484d4d45; // "HMME"
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Terminates the parameter records of a part file.
+	private static final byte END_OF_PARTS = 0;
+
+	/**
+	 * Writes the model in the binary format.
+	 */
+	public static void write(HmmModel model, OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(outputStream);
+		int numStates = model.getNumStates();
+		int numTokens = model.getNumTokens();
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		writeString(out, model.getStartState());
+		out.writeInt(numStates);
+		for (int i = 0; i < numStates; i++) {
+			writeString(out, model.getState(i));
+		}
+		out.writeInt(numTokens);
+		for (int i = 0; i < numTokens; i++) {
+			writeString(out, model.getToken(i));
+		}
+
+		for (double logProb : model.getStartLogProbs()) {
+			out.writeDouble(logProb);
+		}
+
+		// Transitions are stored row-major by from state, emissions token-major, so both are sparse rows.
+		writeSparseRows(out, model.getTransLogProbs(), numStates, numStates);
+		writeSparseRows(out, model.getEmisLogProbs(), numTokens, numStates);
+
+		out.flush();
+	}
+
+	/**
+	 * Reads a model in the binary format with a single bulk read of the given number of bytes.
+	 */
+	public static HmmModel read(InputStream in, long length) throws IOException {
+		byte[] bytes = new byte[(int) length];
+		IOUtils.readFully(in, bytes, 0, bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not an HMM model file.");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported HMM model file version " + version + ", expected " + VERSION + ".");
+		}
+
+		String startState = readString(buffer);
+		String[] states = new String[buffer.getInt()];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = readString(buffer);
+		}
+		String[] tokens = new String[buffer.getInt()];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = readString(buffer);
+		}
+
+		HmmModel model = new HmmModel(startState, states, tokens);
+		readDoubles(buffer, model.getStartLogProbs(), 0, states.length);
+		readSparseRows(buffer, model.getTransLogProbs(), states.length, states.length);
+		readSparseRows(buffer, model.getEmisLogProbs(), tokens.length, states.length);
+
+		return model;
+	}
+
+	/**
+	 * Loads the model for a task from the model parameters directory given in the job conf (see load(JobConf,
+	 * String)).
+	 */
+	public static HmmModel load(JobConf job) throws Exception {
+		return load(job, job.get(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY));
+	}
+
+	/**
+	 * Loads the model in the given model parameters directory for a task. Uses the binary model file of the
+	 * directory if it was shipped through the DistributedCache, and otherwise reads the directory.
+	 */
+	public static HmmModel load(JobConf job, String modelParamsDirPathStr) throws Exception {
+		// The local cache files are in the order of the cache files they are copies of.
+		URI[] cacheFiles = DistributedCache.getCacheFiles(job);
+		Path[] localCacheFiles = DistributedCache.getLocalCacheFiles(job);
+		if (cacheFiles != null && localCacheFiles != null) {
+			String modelPath = new Path(modelParamsDirPathStr, FILE_NAME).toUri().getPath();
+			for (int i = 0; i < cacheFiles.length && i < localCacheFiles.length; i++) {
+				if (cacheFiles[i].getPath().equals(modelPath)) {
+					File file = new File(localCacheFiles[i].toUri().getPath());
+					try (InputStream in = new FileInputStream(file)) {
+						return read(in, file.length());
+					}
+				}
+			}
+		}
+
+		URI bucketURI = new URI(job.get(ExpectationMapper.BUCKET_URI_KEY));
+		FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
+		return loadFromDirectory(fs, new Path(modelParamsDirPathStr), job.get(ExpectationMapper.START_STATE_KEY));
+	}
+
+	/**
+	 * Loads the model stored in the given model parameters directory: from the binary model file if it exists,
+	 * and otherwise by parsing the text model parameter files.
+	 */
+	public static HmmModel loadFromDirectory(FileSystem fs, Path modelParametersDirPath, String startState)
+			throws Exception {
+		Path binaryPath = new Path(modelParametersDirPath, FILE_NAME);
+		if (fs.exists(binaryPath)) {
+			long length = fs.getFileStatus(binaryPath).getLen();
+			try (FSDataInputStream in = fs.open(binaryPath)) {
+				return read(in, length);
+			}
+		}
+
+		Map<StringPair, Double> transLogProbMap = new HashMap<>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<>();
+
+		for (FileStatus modelParameterFileStatus : fs.listStatus(modelParametersDirPath)) {
+			String name = modelParameterFileStatus.getPath().getName();
+			if (modelParameterFileStatus.isDir() || name.startsWith("_") || name.endsWith(PART_FILE_SUFFIX)
+					|| name.equals(MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME)) {
+				continue;
+			}
+
+			try (FSDataInputStream modelParametersIn = fs.open(modelParameterFileStatus.getPath())) {
+				StaticUtil.readModelParametersFile(modelParametersIn, transLogProbMap, emisLogProbMap);
+			}
+		}
+
+		return HmmModel.fromLogProbMaps(startState, transLogProbMap, emisLogProbMap);
+	}
+
+	/**
+	 * Writes one id-coded model parameter to a reducer's part file. For transitions from the start state when it
+	 * is not a regular state, fromId is -1.
+	 */
+	public static void writeParameter(DataOutput out, char parameterType, int fromId, int toId, double logProb)
+			throws IOException {
+		out.writeByte(parameterType);
+		WritableUtils.writeVInt(out, fromId);
+		WritableUtils.writeVInt(out, toId);
+		out.writeDouble(logProb);
+	}
+
+	/**
+	 * Terminates a reducer's part file.
+	 */
+	public static void closeParameters(DataOutput out) throws IOException {
+		out.writeByte(END_OF_PARTS);
+	}
+
+	/**
+	 * Assembles the binary model file of an EM iteration from the part files written by its reducers, using the
+	 * states and tokens of the previous iteration's model, and deletes the part files. Returns the merged model.
+	 */
+	public static HmmModel mergeParts(FileSystem fs, HmmModel prevModel, Path outputDirPath) throws IOException {
+		return mergeParts(fs, prevModel, outputDirPath, new int[0]);
+	}
+
+	/**
+	 * Like mergeParts(FileSystem, HmmModel, Path), but also normalizes the emissions of the states whose buckets
+	 * the reducers output unnormalized (see MaximizationPartitioner), given by their number of buckets.
+	 */
+	public static HmmModel mergeParts(FileSystem fs, HmmModel prevModel, Path outputDirPath, int[] splitNumBuckets)
+			throws IOException {
+		HmmModel model = prevModel.emptyCopy();
+
+		for (FileStatus fileStatus : fs.listStatus(outputDirPath)) {
+			Path partPath = fileStatus.getPath();
+			String name = partPath.getName();
+			if (!name.startsWith(PART_FILE_NAME + "-") || !name.endsWith(PART_FILE_SUFFIX)) {
+				continue;
+			}
+
+			try (DataInputStream in = new DataInputStream(fs.open(partPath))) {
+				readParameters(in, model);
+			}
+			fs.delete(partPath, false);
+		}
+		MaximizationPartitioner.normalizeSplitStates(model, splitNumBuckets);
+
+		try (OutputStream out = fs.create(new Path(outputDirPath, FILE_NAME), true)) {
+			write(model, out);
+		}
+
+		return model;
+	}
+
+	private static void readParameters(DataInput in, HmmModel model) throws IOException {
+		try {
+			byte parameterType;
+			while (END_OF_PARTS != (parameterType = in.readByte())) {
+				int fromId = WritableUtils.readVInt(in);
+				int toId = WritableUtils.readVInt(in);
+				double logProb = in.readDouble();
+
+				if (parameterType == EMModelParameter.PARAMETER_TYPE_TRANSITION) {
+					model.setTransLogProb(fromId, toId, logProb);
+				} else {
+					model.setEmisLogProb(fromId, toId, logProb);
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated model parameters part file.", e);
+		}
+	}
+
+	private static void writeSparseRows(DataOutputStream out, double[] values, int numRows, int numColumns)
+			throws IOException {
+		int numNonZero = 0;
+		out.writeInt(0);
+		for (int row = 0; row < numRows; row++) {
+			for (int i = row * numColumns; i < (row + 1) * numColumns; i++) {
+				if (values[i] != Double.NEGATIVE_INFINITY) {
+					numNonZero++;
+				}
+			}
+			out.writeInt(numNonZero);
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != Double.NEGATIVE_INFINITY) {
+				out.writeInt(i % numColumns);
+			}
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != Double.NEGATIVE_INFINITY) {
+				out.writeDouble(values[i]);
+			}
+		}
+	}
+
+	private static void readSparseRows(ByteBuffer buffer, double[] values, int numRows, int numColumns) {
+		int[] offsets = new int[numRows + 1];
+		buffer.asIntBuffer().get(offsets);
+		buffer.position(buffer.position() + offsets.length * 4);
+
+		int numNonZero = offsets[numRows];
+		int[] columns = new int[numNonZero];
+		buffer.asIntBuffer().get(columns);
+		buffer.position(buffer.position() + columns.length * 4);
+
+		double[] logProbs = new double[numNonZero];
+		readDoubles(buffer, logProbs, 0, numNonZero);
+
+		for (int row = 0; row < numRows; row++) {
+			for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+				values[row * numColumns + columns[i]] = logProbs[i];
+			}
+		}
+	}
+
+	private static void readDoubles(ByteBuffer buffer, double[] values, int offset, int length) {
+		buffer.asDoubleBuffer().get(values, offset, length);
+		buffer.position(buffer.position() + length * 8);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		String str = new String(buffer.array(), buffer.position(), length, UTF8);
+		buffer.position(buffer.position() + length);
+		return str;
+	}
+
+}
@@ -0,0 +1,397 @@
+package edu.dartmouth.hmmem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Runs EM iterations in the driver's process instead of as MapReduce jobs, for corpora that fit in memory (see
+ * EMDriver.LOCAL_KEY).
+ *
+ * The corpus is read and encoded to token ids once. Each iteration runs the E step over the sequences with a
+ * fork-join pool, where every thread accumulates into its own forward-backward kernel and ExpectedCounts as in
+ * ExpectationMapper, merges the counts and normalizes them in place into the new model. The output directory
+ * of the iteration gets the same files as that of an EM job: the model parameters as text, the binary
+ * HmmModelFile and the total log alpha.
+ *
+ * In online EM mode (see EMDriver.ONLINE_KEY), an iteration is instead a pass over the sequences in mini-batches
+ * of OnlineEM.BATCH_SIZE_KEY sequences, after each of which the model is updated (see OnlineEM).
+ */
+public class LocalEMEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(LocalEMEngine.class);
+
+	/**
+	 * Number of threads of the E step. Defaults to the number of available processors.
+	 */
+	public static final String THREADS_KEY = "hmmem.local.threads";
+
+	// Name of the text model parameters file, as written by the single reducer of an EM job.
+	public static final String MODEL_PARAMETERS_FILE_NAME = "part-00000";
+
+	// Number of sequences below which a task of the E step is not split further.
+	private static final int MIN_TASK_SEQUENCES = 16;
+
+	private final Configuration conf;
+	private final FileSystem fs;
+	private final ForkJoinPool pool;
+
+	// The workers of the E step, kept for the lifetime of the engine so that their counts are allocated once. A
+	// task takes an idle worker, or creates one if there is none, so there are at most as many as pool threads.
+	private final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+	private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+	// The summed counts of the workers, reused by every call of expect.
+	private ExpectedCounts totalCounts;
+
+	private final List<int[]> sequences = new ArrayList<int[]>();
+	private long numTokens = 0;
+	private int numEmptySequences = 0;
+	private int numUnknownTokenSequences = 0;
+
+	/**
+	 * Reads every input file in the given directory, one observation sequence per line, and encodes the
+	 * sequences with the token ids of the given model. As in ExpectationMapper, empty sequences and sequences
+	 * with a token no state can emit are skipped. If tokenizedInput is true, the directory is the tokenized corpus
+	 * written by TokenizerMapper with the token ids of the model, and its sequences are read as they are.
+	 */
+	public LocalEMEngine(Configuration conf, FileSystem fs, Path inputDirPath, boolean tokenizedInput, HmmModel model)
+			throws IOException {
+		this.conf = conf;
+		this.fs = fs;
+		pool = new ForkJoinPool(conf.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+
+		long startNanos = System.nanoTime();
+		for (FileStatus inputFileStatus : fs.listStatus(inputDirPath)) {
+			String name = inputFileStatus.getPath().getName();
+			if (inputFileStatus.isDir() || name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+
+			if (tokenizedInput) {
+				readTokenizedFile(inputFileStatus.getPath());
+				continue;
+			}
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(inputFileStatus.getPath()),
+					"UTF-8"))) {
+				String line;
+				while (null != (line = reader.readLine())) {
+					addSequence(line, model);
+				}
+			}
+		}
+
+		logger.info("Loaded " + sequences.size() + " sequences (" + numEmptySequences + " empty, "
+				+ numUnknownTokenSequences + " with unknown tokens skipped), " + numTokens + " tokens in "
+				+ (System.nanoTime() - startNanos) / 1000000 + " ms.");
+	}
+
+	private void readTokenizedFile(Path path) throws IOException {
+		LongWritable byteOffset = new LongWritable();
+		EncodedObservationSequence sequence = new EncodedObservationSequence();
+
+		try (SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf)) {
+			while (reader.next(byteOffset, sequence)) {
+				sequences.add(sequence.getTokenIds());
+				numTokens += sequence.getTokenIds().length;
+			}
+		}
+	}
+
+	private void addSequence(String line, HmmModel model) {
+		List<String> observationSequence = new ArrayList<String>();
+		for (String obs : line.trim().split("\\s+")) {
+			String trimmedObs = obs.trim();
+			if (trimmedObs.length() != 0) {
+				observationSequence.add(trimmedObs);
+			}
+		}
+
+		if (observationSequence.size() == 0) {
+			numEmptySequences++;
+			return;
+		}
+
+		int[] observations = model.encodeObservationSequence(observationSequence);
+		if (observations == null) {
+			numUnknownTokenSequences++;
+			return;
+		}
+
+		sequences.add(observations);
+		numTokens += observations.length;
+	}
+
+	/**
+	 * Runs one EM iteration from the given model, writes its output files to the given directory and returns the
+	 * new model.
+	 */
+	public HmmModel runIteration(HmmModel model, Path iterationDirPath, int iteration) throws IOException {
+		long startNanos = System.nanoTime();
+		ExpectedCounts counts = expect(model);
+		long expectationNanos = System.nanoTime() - startNanos;
+
+		if (counts.getNumSequences() == 0) {
+			throw new IOException("No sequence of the corpus has non-zero probability under the model.");
+		}
+
+		startNanos = System.nanoTime();
+		HmmModel newModel = maximize(model, counts);
+		long maximizationNanos = System.nanoTime() - startNanos;
+
+		writeIteration(newModel, counts.getLogAlpha(), iterationDirPath);
+
+		logger.info("EM iteration " + iteration + ": " + sequences.size() + " sequences ("
+				+ (sequences.size() - counts.getNumSequences()) + " with probability 0), " + numTokens
+				+ " tokens, expectation " + expectationNanos / 1000000 + " ms, maximization " + maximizationNanos
+				/ 1000000 + " ms.");
+
+		return newModel;
+	}
+
+	/**
+	 * Runs one pass of online EM from the given model, writes its output files to the given directory and returns
+	 * the new model. The total log alpha written is the sum of the log alphas of the mini-batches, each under the
+	 * model it was processed with.
+	 */
+	public HmmModel runOnlinePass(HmmModel model, OnlineEM onlineEM, Path iterationDirPath, int iteration)
+			throws IOException {
+		long startNanos = System.nanoTime();
+		int batchSize = conf.getInt(OnlineEM.BATCH_SIZE_KEY, 1000);
+		double totalLogAlpha = 0.0;
+		int numBatches = 0;
+
+		for (int begin = 0; begin < sequences.size(); begin += batchSize) {
+			int end = Math.min(begin + batchSize, sequences.size());
+			ExpectedCounts counts = expect(model, begin, end);
+			if (counts.getNumSequences() == 0) {
+				continue;
+			}
+
+			totalLogAlpha += counts.getLogAlpha();
+			model = onlineEM.update(model, counts, end - begin);
+			numBatches++;
+		}
+
+		if (numBatches == 0) {
+			throw new IOException("No sequence of the corpus has non-zero probability under the model.");
+		}
+
+		writeIteration(model, totalLogAlpha, iterationDirPath);
+
+		logger.info("Online EM pass " + iteration + ": " + sequences.size() + " sequences in " + numBatches
+				+ " mini-batches, step size " + onlineEM.getStepSize() + ", " + (System.nanoTime() - startNanos)
+				/ 1000000 + " ms.");
+
+		return model;
+	}
+
+	/**
+	 * Shuts down the threads of the E step.
+	 */
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Runs forward-backward over all sequences and returns the summed expected counts.
+	 */
+	private ExpectedCounts expect(HmmModel model) {
+		return expect(model, 0, sequences.size());
+	}
+
+	/**
+	 * Runs forward-backward over the sequences in [begin, end) and returns the summed expected counts. The
+	 * returned counts are reused, and overwritten by the next call.
+	 */
+	private ExpectedCounts expect(HmmModel model, int begin, int end) {
+		pool.invoke(new ExpectationTask(model, begin, end));
+
+		if (totalCounts == null) {
+			totalCounts = new ExpectedCounts(model);
+		} else {
+			totalCounts.clear();
+		}
+		for (Worker worker : workers) {
+			totalCounts.add(worker.expectedCounts);
+			worker.expectedCounts.clear();
+		}
+
+		return totalCounts;
+	}
+
+	/**
+	 * Normalizes the expected counts into a model over the same states and tokens, as MaximizationReducer does:
+	 * the transitions from each state and the emissions of each state sum to 1, and parameters with no expected
+	 * count get probability 0.
+	 */
+	static HmmModel maximize(HmmModel model, ExpectedCounts counts) {
+		HmmModel newModel = model.emptyCopy();
+		int numStates = model.getNumStates();
+		int numTokens = model.getNumTokens();
+		int startStateId = model.getStartStateId();
+		double[] startCounts = counts.getStartCounts();
+		double[] transCounts = counts.getTransCounts();
+		double[] emisCounts = counts.getEmisCounts();
+
+		// Transitions from the start state, if the start state is not also a regular state.
+		if (startStateId < 0) {
+			double sum = 0.0;
+			for (int toState = 0; toState < numStates; toState++) {
+				sum += startCounts[toState];
+			}
+			for (int toState = 0; toState < numStates; toState++) {
+				if (startCounts[toState] > 0) {
+					newModel.setTransLogProb(-1, toState, LogMath.log2(startCounts[toState] / sum));
+				}
+			}
+		}
+
+		double[] rowCounts = new double[numStates];
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			double sum = 0.0;
+			for (int toState = 0; toState < numStates; toState++) {
+				rowCounts[toState] = transCounts[fromState * numStates + toState];
+				if (fromState == startStateId) {
+					rowCounts[toState] += startCounts[toState];
+				}
+				sum += rowCounts[toState];
+			}
+
+			for (int toState = 0; toState < numStates; toState++) {
+				if (rowCounts[toState] > 0) {
+					newModel.setTransLogProb(fromState, toState, LogMath.log2(rowCounts[toState] / sum));
+				}
+			}
+		}
+
+		// Emission counts are token-major, so sum them per state first.
+		double[] stateSums = new double[numStates];
+		for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+			for (int state = 0; state < numStates; state++) {
+				stateSums[state] += emisCounts[tokenId * numStates + state];
+			}
+		}
+		for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+			for (int state = 0; state < numStates; state++) {
+				double count = emisCounts[tokenId * numStates + state];
+				if (count > 0) {
+					newModel.setEmisLogProb(state, tokenId, LogMath.log2(count / stateSums[state]));
+				}
+			}
+		}
+
+		return newModel;
+	}
+
+	/**
+	 * Writes the text model parameters, the binary model file and the total log alpha of an iteration.
+	 */
+	private void writeIteration(HmmModel model, double totalLogAlpha, Path iterationDirPath) throws IOException {
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		model.fillLogProbMaps(transLogProbMap, emisLogProbMap);
+
+		try (FSDataOutputStream out = fs.create(new Path(iterationDirPath, MODEL_PARAMETERS_FILE_NAME), false)) {
+			EMDriver.outputEMModelParams(transLogProbMap, emisLogProbMap, out);
+		}
+
+		try (OutputStream out = fs.create(new Path(iterationDirPath, HmmModelFile.FILE_NAME), false)) {
+			HmmModelFile.write(model, out);
+		}
+
+		try (FSDataOutputStream out = fs.create(
+				new Path(iterationDirPath, MaximizationReducer.TOTAL_LOG_ALPHA_FILE_NAME), false)) {
+			out.write(EMModelParameter.makeAlphaObject(totalLogAlpha).toString().getBytes());
+		}
+	}
+
+	/**
+	 * Runs forward-backward over a range of the sequences, splitting it in two while it is large.
+	 */
+	private class ExpectationTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final HmmModel model;
+		private final int begin;
+		private final int end;
+
+		private ExpectationTask(HmmModel model, int begin, int end) {
+			this.model = model;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - begin > MIN_TASK_SEQUENCES) {
+				int middle = (begin + end) >>> 1;
+				invokeAll(new ExpectationTask(model, begin, middle), new ExpectationTask(model, middle, end));
+				return;
+			}
+
+			Worker worker = idleWorkers.poll();
+			if (worker == null) {
+				worker = new Worker(new ExpectedCounts(model));
+				workers.add(worker);
+			}
+
+			ForwardBackward forwardBackward = worker.getForwardBackward(model);
+			for (int i = begin; i < end; i++) {
+				forwardBackward.accumulate(sequences.get(i), worker.expectedCounts);
+			}
+
+			idleWorkers.add(worker);
+		}
+
+	}
+
+	/**
+	 * Forward-backward kernel and expected counts of one thread of the E step. The counts are over the states and
+	 * tokens shared by all models of the run, and are cleared after every call of expect; the kernel is bound to a
+	 * model, and is created again only when the model changes, as it does after every mini-batch of online EM.
+	 */
+	private class Worker {
+
+		private final ExpectedCounts expectedCounts;
+		private HmmModel model;
+		private ForwardBackward forwardBackward;
+
+		private Worker(ExpectedCounts expectedCounts) {
+			this.expectedCounts = expectedCounts;
+		}
+
+		private ForwardBackward getForwardBackward(HmmModel model) {
+			if (model != this.model) {
+				this.model = model;
+				forwardBackward = ForwardBackward.create(conf, model);
+			}
+			return forwardBackward;
+		}
+
+	}
+
+}
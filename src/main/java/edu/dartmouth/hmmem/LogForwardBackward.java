@@ -0,0 +1,289 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Forward-backward kernel in log space.
+ *
+ * The forward and backward matrices are flat primitive arrays indexed [position * numStates + state] and hold
+ * base 2 log probabilities, with Double.NEGATIVE_INFINITY for log(0). The matrices are reused between
+ * sequences and only grow, so a mapper allocates nothing per sequence once it has seen its longest line.
+ * Transitions are read from the TransitionGraph, so each position costs O(number of transitions).
+ *
+ * At each position only the states that emit the observation (see EmissionIndex) are visited. Forward columns
+ * are complete (the other states are log(0)), but backward cells are only computed for the emitting states,
+ * since the backward probability of any other state is always multiplied by a forward or emission
+ * probability of 0.
+ */
+public class LogForwardBackward extends ForwardBackward {
+
+	private double[] forwardMatrix = new double[0];
+	private double[] backwardMatrix = new double[0];
+
+	// Scratch column used for the log-sum-exp over the predecessors or successors of a state, or over the states
+	// emitting a token.
+	private final double[] scratch;
+	// Scratch column holding log P(nextObs|nextState) + Backward(i+1, nextState) for the states emitting nextObs,
+	// and log(0) for all other states between uses.
+	private final double[] nextColumn;
+
+	public LogForwardBackward(HmmModel model) {
+		super(model);
+
+		scratch = new double[Math.max(Math.max(graph.getMaxInDegree(), graph.getMaxOutDegree()),
+				emissionIndex.getMaxEmittingStates())];
+		nextColumn = new double[numStates];
+		Arrays.fill(nextColumn, Double.NEGATIVE_INFINITY);
+	}
+
+	@Override
+	public double accumulate(int[] observations, ExpectedCounts counts) {
+		int numObs = observations.length;
+		ensureCapacity(numObs * numStates);
+
+		calculateForwardMatrix(observations);
+
+		double logAlpha = logSumOfEmittingStates(forwardMatrix, numObs - 1, observations[numObs - 1]);
+		if (logAlpha == Double.NEGATIVE_INFINITY) {
+			return logAlpha;
+		}
+
+		calculateBackwardMatrix(observations);
+
+		accumulateStartCounts(observations, logAlpha, counts);
+		accumulateTransitionCounts(observations, logAlpha, counts);
+		accumulateEmissionCounts(observations, logAlpha, counts);
+
+		counts.addLogAlpha(logAlpha);
+
+		return logAlpha;
+	}
+
+	@Override
+	public double posteriors(int[] observations, double[] posteriors) {
+		int numObs = observations.length;
+		ensureCapacity(numObs * numStates);
+
+		calculateForwardMatrix(observations);
+
+		double logAlpha = logSumOfEmittingStates(forwardMatrix, numObs - 1, observations[numObs - 1]);
+		if (logAlpha == Double.NEGATIVE_INFINITY) {
+			return logAlpha;
+		}
+
+		calculateBackwardMatrix(observations);
+
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		for (int i = 0; i < numObs; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+
+			Arrays.fill(posteriors, offset, offset + numStates, 0.0);
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+				posteriors[offset + state] = LogMath.exp2(forwardMatrix[offset + state] + backwardMatrix[offset + state]
+						- logAlpha);
+			}
+		}
+
+		return logAlpha;
+	}
+
+	/**
+	 * Fills in the forward matrix: the log probability at [i][state] is the sum over all possible previous
+	 * taggings of the probability of observations 0..i, ending in the given state.
+	 */
+	private void calculateForwardMatrix(int[] observations) {
+		double[] startLogProbs = model.getStartLogProbs();
+		int[] predecessorOffsets = graph.getPredecessorOffsets();
+		int[] predecessorStates = graph.getPredecessorStates();
+		double[] predecessorLogProbs = graph.getPredecessorLogProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisLogProbs = emissionIndex.getEmisLogProbs();
+
+		// P(state|#) * P(firstObservation|state)
+		Arrays.fill(forwardMatrix, 0, numStates, Double.NEGATIVE_INFINITY);
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			forwardMatrix[state] = startLogProbs[state] + emisLogProbs[entry];
+		}
+
+		for (int i = 1; i < observations.length; i++) {
+			int prevOffset = (i - 1) * numStates;
+			int offset = i * numStates;
+			int obs = observations[i];
+
+			Arrays.fill(forwardMatrix, offset, offset + numStates, Double.NEGATIVE_INFINITY);
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+
+				// Forward(i-1, prevState) * P(state|prevState)
+				int begin = predecessorOffsets[state];
+				int end = predecessorOffsets[state + 1];
+				for (int edge = begin; edge < end; edge++) {
+					scratch[edge - begin] = forwardMatrix[prevOffset + predecessorStates[edge]] + predecessorLogProbs[edge];
+				}
+
+				forwardMatrix[offset + state] = LogMath.log2SumExp2(scratch, 0, end - begin) + emisLogProbs[entry];
+			}
+		}
+	}
+
+	/**
+	 * Fills in the backward matrix: the log probability at [i][state] is the sum over all possible subsequent
+	 * taggings given the state at i, not including observation i. Only the states emitting observation i are
+	 * filled in.
+	 */
+	private void calculateBackwardMatrix(int[] observations) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorLogProbs = graph.getSuccessorLogProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		int lastObs = observations[observations.length - 1];
+		int lastOffset = (observations.length - 1) * numStates;
+		for (int entry = emisOffsets[lastObs]; entry < emisOffsets[lastObs + 1]; entry++) {
+			backwardMatrix[lastOffset + emittingStates[entry]] = 0.0;
+		}
+
+		for (int i = observations.length - 2; i >= 0; i--) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			fillNextColumn(observations[i + 1], offset + numStates);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+
+				// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState)
+				int begin = successorOffsets[state];
+				int end = successorOffsets[state + 1];
+				for (int edge = begin; edge < end; edge++) {
+					scratch[edge - begin] = successorLogProbs[edge] + nextColumn[successorStates[edge]];
+				}
+
+				backwardMatrix[offset + state] = LogMath.log2SumExp2(scratch, 0, end - begin);
+			}
+
+			clearNextColumn(observations[i + 1]);
+		}
+	}
+
+	private void accumulateStartCounts(int[] observations, double logAlpha, ExpectedCounts counts) {
+		double[] startCounts = counts.getStartCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			startCounts[state] += LogMath.exp2(forwardMatrix[state] + backwardMatrix[state] - logAlpha);
+		}
+	}
+
+	private void accumulateTransitionCounts(int[] observations, double logAlpha, ExpectedCounts counts) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorLogProbs = graph.getSuccessorLogProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] transCounts = counts.getTransCounts();
+
+		for (int i = 0; i < observations.length - 1; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			fillNextColumn(observations[i + 1], offset + numStates);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int fromState = emittingStates[entry];
+				double forwardLogProb = forwardMatrix[offset + fromState] - logAlpha;
+				if (forwardLogProb == Double.NEGATIVE_INFINITY) {
+					continue;
+				}
+
+				int transOffset = fromState * numStates;
+				for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+					int toState = successorStates[edge];
+					transCounts[transOffset + toState] += LogMath.exp2(forwardLogProb + successorLogProbs[edge]
+							+ nextColumn[toState]);
+				}
+			}
+
+			clearNextColumn(observations[i + 1]);
+		}
+	}
+
+	private void accumulateEmissionCounts(int[] observations, double logAlpha, ExpectedCounts counts) {
+		double[] emisCounts = counts.getEmisCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int i = 0; i < observations.length; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			int emisOffset = obs * numStates;
+			counts.markToken(obs);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+				emisCounts[emisOffset + state] += LogMath.exp2(forwardMatrix[offset + state]
+						+ backwardMatrix[offset + state] - logAlpha);
+			}
+		}
+	}
+
+	/**
+	 * Sets nextColumn[nextState] = log P(nextObs|nextState) + Backward(i+1, nextState) for the states emitting
+	 * nextObs, where nextOffset is the offset of column i+1 in the backward matrix.
+	 */
+	private void fillNextColumn(int nextObs, int nextOffset) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisLogProbs = emissionIndex.getEmisLogProbs();
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			int nextState = emittingStates[entry];
+			nextColumn[nextState] = emisLogProbs[entry] + backwardMatrix[nextOffset + nextState];
+		}
+	}
+
+	/**
+	 * Resets the entries set by fillNextColumn(nextObs, ...) to log(0).
+	 */
+	private void clearNextColumn(int nextObs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			nextColumn[emittingStates[entry]] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Returns log(sum of 2^matrix[i][state]) over the states emitting the given token.
+	 */
+	private double logSumOfEmittingStates(double[] matrix, int i, int obs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		int offset = i * numStates;
+		int begin = emisOffsets[obs];
+		int end = emisOffsets[obs + 1];
+		for (int entry = begin; entry < end; entry++) {
+			scratch[entry - begin] = matrix[offset + emittingStates[entry]];
+		}
+
+		return LogMath.log2SumExp2(scratch, 0, end - begin);
+	}
+
+	private void ensureCapacity(int size) {
+		if (forwardMatrix.length < size) {
+			forwardMatrix = new double[size];
+			backwardMatrix = new double[size];
+		}
+	}
+
+}
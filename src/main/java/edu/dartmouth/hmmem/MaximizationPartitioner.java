@@ -0,0 +1,133 @@
+package edu.dartmouth.hmmem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.util.StringUtils;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Skew-aware partitioner of the EM job's map output (see EMDriver.SKEW_AWARE_PARTITIONING_KEY).
+ *
+ * By default, every parameter of a state goes to one reducer (see EMParameterKey.hashCode), so the reducer of a
+ * state that can emit a large part of the vocabulary does most of the work of the M step. This partitioner
+ * splits the emissions of such states into buckets, by token id modulo the number of buckets of the state, and
+ * sends the buckets of a state to consecutive reducers, starting at the one the state hashes to. Transitions and
+ * alphas are partitioned as before; the alpha of every model keeps its own key, and its reducer merges the alphas
+ * of the mappers on its own.
+ *
+ * The reducer of a bucket only has part of the emission counts of its state, so it outputs them unnormalized, and
+ * the driver normalizes the emissions of the split states once the part files are merged (see normalizeSplitStates),
+ * which reads only the emissions of those states.
+ *
+ * Which states are split is planned by the driver (see planSplitStates) and passed to the tasks in SPLIT_STATES_KEY,
+ * so the partitioner, the reducers and the driver agree on it.
+ */
+public class MaximizationPartitioner implements Partitioner<EMParameterKey, DoubleWritable> {
+
+	/**
+	 * The split states, as "stateId:numBuckets" strings. Set by the driver.
+	 */
+	public static final String SPLIT_STATES_KEY = "hmmem.maximization.split_states";
+
+	// Number of buckets of every state id, 0 for the states that are not split.
+	private int[] numBuckets;
+
+	@Override
+	public void configure(JobConf job) {
+		numBuckets = getNumBuckets(job);
+	}
+
+	@Override
+	public int getPartition(EMParameterKey key, DoubleWritable value, int numPartitions) {
+		int partition = (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+
+		int fromId = key.getFromId();
+		if (key.getParameterType() == EMModelParameter.PARAMETER_TYPE_EMISSION && fromId < numBuckets.length
+				&& numBuckets[fromId] > 1) {
+			partition = (partition + key.getToId() % numBuckets[fromId]) % numPartitions;
+		}
+
+		return partition;
+	}
+
+	/**
+	 * Returns the number of buckets of every state id in SPLIT_STATES_KEY, 0 for the states that are not split.
+	 */
+	public static int[] getNumBuckets(JobConf job) {
+		String[] splitStateStrs = job.getStrings(SPLIT_STATES_KEY, new String[0]);
+
+		int maxStateId = -1;
+		for (String splitStateStr : splitStateStrs) {
+			maxStateId = Math.max(maxStateId, Integer.parseInt(splitStateStr.trim().split(":")[0]));
+		}
+
+		int[] numBuckets = new int[maxStateId + 1];
+		for (String splitStateStr : splitStateStrs) {
+			String[] fields = splitStateStr.trim().split(":");
+			numBuckets[Integer.parseInt(fields[0])] = Integer.parseInt(fields[1]);
+		}
+		return numBuckets;
+	}
+
+	/**
+	 * Plans which states of the model to split over the given number of reducers: a state with more non-zero
+	 * emissions than a reducer's even share of all of them gets one bucket per share, up to one per reducer.
+	 * Returns the SPLIT_STATES_KEY value, or null if no state needs to be split.
+	 */
+	public static String planSplitStates(HmmModel model, int numReduceTasks) {
+		int numStates = model.getNumStates();
+		double[] emisLogProbs = model.getEmisLogProbs();
+
+		int[] numEmissions = new int[numStates];
+		long totalEmissions = 0;
+		for (int i = 0; i < emisLogProbs.length; i++) {
+			if (emisLogProbs[i] != Double.NEGATIVE_INFINITY) {
+				numEmissions[i % numStates]++;
+				totalEmissions++;
+			}
+		}
+
+		long share = Math.max((totalEmissions + numReduceTasks - 1) / numReduceTasks, 1);
+		List<String> splitStateStrs = new ArrayList<String>();
+		for (int state = 0; state < numStates; state++) {
+			int numBuckets = (int) Math.min((numEmissions[state] + share - 1) / share, numReduceTasks);
+			if (numBuckets > 1) {
+				splitStateStrs.add(state + ":" + numBuckets);
+			}
+		}
+
+		return splitStateStrs.isEmpty() ? null : StringUtils.join(",", splitStateStrs.toArray());
+	}
+
+	/**
+	 * Normalizes the emissions of the split states of the model, which hold the summed log counts output by the
+	 * reducers of their buckets, into probabilities.
+	 */
+	public static void normalizeSplitStates(HmmModel model, int[] numBuckets) {
+		int numStates = model.getNumStates();
+		int numTokens = model.getNumTokens();
+		double[] emisLogProbs = model.getEmisLogProbs();
+
+		for (int state = 0; state < numBuckets.length; state++) {
+			if (numBuckets[state] <= 1) {
+				continue;
+			}
+
+			double logCountSum = LogMath.LOG_ZERO;
+			for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+				logCountSum = LogMath.log2Add(logCountSum, emisLogProbs[tokenId * numStates + state]);
+			}
+			for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+				if (emisLogProbs[tokenId * numStates + state] != Double.NEGATIVE_INFINITY) {
+					emisLogProbs[tokenId * numStates + state] -= logCountSum;
+				}
+			}
+		}
+	}
+
+}
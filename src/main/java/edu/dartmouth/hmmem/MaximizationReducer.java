@@ -1,109 +1,145 @@
 package edu.dartmouth.hmmem;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.s3native.NativeS3FileSystem;
-import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.MultipleTextOutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import zx.soft.utils.LogMath;
 
 /**
  * Reducer to perform maximization step.
  * Input - 
- * key: state (either start of transition, state for emission, or dummy state for alpha)
- * value: EMModelParameter object representing transition, emission, or alpha dummy with log counts
+ * key: EMParameterKey identifying a transition, emission, or the alpha by state and token ids
+ * value: expected log count (or log alpha) from one mapper or combiner
  * 
  * Output -
- * key: state (either start of transition or state for emission, but no dummy state for alpha)
+ * key: random seed number of the model, which SeedOutputFormat turns into a subdirectory of the output
+ * directory
  * value: EMModelParameter object
  * 
- * The reducer works by taking the expected log counts for transitionLogCounts that start on the
- * given state (i.e. the input key) or emissionLogCounts for the state and normalizing (sum of probabilities == 1) to
- * get new model parameters. 
+ * The reducer works by summing the expected log counts of each parameter and normalizing (sum of probabilities
+ * == 1) the transitions that start on a given state or the emissions of the state to get new model parameters.
+ * Since keys are partitioned and sorted by seed and from state, all parameters that are normalized together
+ * arrive at the same reducer in consecutive reduce calls, and are buffered until the next from state (or type,
+ * or seed) starts.
+ *
+ * The reducer that receives the alphas of a model from the mappers will multiply them together to produce
+ * total alpha and will output this to a specially named file in the output directory of the model.
  *
- * The reducer that receives the alphas from the mappers will multiply them together to produce
- * total alpha and will output this to a specially named file in the output file path directory.
+ * With MaximizationPartitioner, the emissions of a split state arrive at several reducers, one bucket each, which
+ * output them unnormalized to their binary part files only; the driver normalizes them when it merges the parts
+ * and writes their text parameters.
+ *
+ * Each reducer also writes the new model parameters of each model, coded with the state and token ids of the
+ * previous iteration's model, to a binary part file in the output directory of the model, which the driver merges
+ * into the model's HmmModelFile.
  */
 
 public class MaximizationReducer extends MapReduceBase implements
-		Reducer<Text, EMModelParameter, NullWritable, EMModelParameter> {
+		Reducer<EMParameterKey, DoubleWritable, IntWritable, EMModelParameter> {
+
+	private static final Logger logger = LoggerFactory.getLogger(MaximizationReducer.class);
 
 	public static final String TOTAL_LOG_ALPHA_FILE_NAME = "total_log_alpha.txt";
+	/**
+	 * If false, the reducer outputs the summed log expected count of every parameter instead of normalizing the
+	 * counts into probabilities, for online EM to blend into its statistics (see OnlineEM). Defaults to true.
+	 */
+	public static final String NORMALIZE_KEY = "hmmem.maximization.normalize";
 
 	private String outputPathStr;
 	private URI bucketURI;
 
+	private JobConf job;
+	// The previous iteration's model and the binary part file of each model, indexed by seed.
+	private HmmModel[] prevModels;
+	private DataOutputStream[] modelPartOuts;
+
 	private boolean failure = false;
 	private String failureString;
 
+	// The parameters with the same seed, type and from state seen so far, which are normalized together.
+	private int groupSeed;
+	private char groupParameterType;
+	private int groupFromId;
+	private int groupSize = 0;
+	private int[] groupToIds = new int[16];
+	private double[] groupLogCounts = new double[16];
+
+	private OutputCollector<IntWritable, EMModelParameter> output;
+	private final IntWritable outputSeed = new IntWritable();
+	private final EMModelParameter outputParam = new EMModelParameter();
+	private Reporter reporter;
+	private boolean trace;
+	private boolean normalize;
+	// Number of buckets of every split state (see MaximizationPartitioner).
+	private int[] splitNumBuckets;
+
 	@Override
-	public void reduce(Text key, Iterator<EMModelParameter> expectedCounts,
-			OutputCollector<NullWritable, EMModelParameter> output, Reporter reporter) throws IOException {
+	public void reduce(EMParameterKey key, Iterator<DoubleWritable> expectedLogCounts,
+			OutputCollector<IntWritable, EMModelParameter> output, Reporter reporter) throws IOException {
 		if (failure) {
 			throw new IOException(failureString);
 		}
 
-		Map<StringPair, Double> transLogCounts = new HashMap<StringPair, Double>();
-		Map<StringPair, Double> emisLogCounts = new HashMap<StringPair, Double>();
+		this.output = output;
+		this.reporter = reporter;
 
-		Double totalLogAlpha = 0.0;
-		boolean alphaOutput = false;
+		long startNanos = System.nanoTime();
+		reduceKey(key, expectedLogCounts);
+		reporter.incrCounter(EMCounters.REDUCED_KEYS, 1);
+		reporter.incrCounter(EMCounters.MAXIMIZATION_NANOS, System.nanoTime() - startNanos);
+	}
 
-		// Aggregate the counts.
-		while (expectedCounts.hasNext()) {
-			EMModelParameter expectedCount = expectedCounts.next();
-			switch (expectedCount.getParameterType()) {
-			case EMModelParameter.PARAMETER_TYPE_TRANSITION:
-				transLogCounts.put(StringPair.stringPairFromEMModelParameter(expectedCount),
-						expectedCount.getLogCount());
-				break;
-			case EMModelParameter.PARAMETER_TYPE_EMISSION:
-				emisLogCounts
-						.put(StringPair.stringPairFromEMModelParameter(expectedCount), expectedCount.getLogCount());
-				break;
-			case EMModelParameter.TYPE_ALPHA:
-				totalLogAlpha = StaticUtil.calcLogProductOfLogs(totalLogAlpha, expectedCount.getLogCount());
-				alphaOutput = true;
-				break;
+	/**
+	 * Outputs the total log alpha, or sums the log counts of the parameter and adds it to the buffered group.
+	 */
+	private void reduceKey(EMParameterKey key, Iterator<DoubleWritable> expectedLogCounts) throws IOException {
+		// Output the total log alpha.
+		if (key.getParameterType() == EMModelParameter.TYPE_ALPHA) {
+			double totalLogAlpha = 0.0;
+			while (expectedLogCounts.hasNext()) {
+				totalLogAlpha += expectedLogCounts.next().get();
 			}
-		}
-
-		// Normalize the counts to get the new model probabilities.
-		StaticUtil.normalizeLogProbMap(transLogCounts);
-		StaticUtil.normalizeLogProbMap(emisLogCounts);
 
-		// Output the new model parameters to be used by the next iteration or the final model.
-		outputTransitionLogCounts(transLogCounts, output);
-		outputEmissionLogCounts(emisLogCounts, output);
-
-		// Output the total log alpha if appropriate.
-		if (alphaOutput) {
-			String totalLogAlphaPathStr = outputPathStr + "/" + TOTAL_LOG_ALPHA_FILE_NAME;
-			Path totalLogAlphaPath = new Path(totalLogAlphaPathStr);
-
-			FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
-			FSDataOutputStream totalLogAlphaOut = fs.create(totalLogAlphaPath, false);
+			writeTotalLogAlpha(key.getSeed(), totalLogAlpha);
+			return;
+		}
 
-			EMModelParameter totalLogAlphaObject = EMModelParameter.makeAlphaObject(totalLogAlpha);
-			totalLogAlphaOut.write(totalLogAlphaObject.toString().getBytes());
+		// Aggregate the counts.
+		double logCount = LogMath.LOG_ZERO;
+		while (expectedLogCounts.hasNext()) {
+			logCount = LogMath.log2Add(logCount, expectedLogCounts.next().get());
+		}
 
-			totalLogAlphaOut.close();
+		if (groupSize > 0 && (key.getSeed() != groupSeed || key.getParameterType() != groupParameterType
+				|| key.getFromId() != groupFromId)) {
+			outputGroup();
 		}
+
+		groupSeed = key.getSeed();
+		groupParameterType = key.getParameterType();
+		groupFromId = key.getFromId();
+		addToGroup(key.getToId(), logCount);
 	}
 
 	@Override
@@ -112,44 +148,150 @@ public class MaximizationReducer extends MapReduceBase implements
 
 		outputPathStr = FileOutputFormat.getOutputPath(job).toString();
 
+		this.job = job;
+
 		try {
 			bucketURI = new URI(job.get(ExpectationMapper.BUCKET_URI_KEY));
-		} catch (URISyntaxException e) {
+			HmmModel[] models;
+			int[] seeds;
+			if (job.get(ExpectationMapper.MODEL_PARAMETERS_DIR_PATHS_KEY) != null) {
+				models = ModelCache.getAll(job);
+				seeds = ExpectationMapper.getSeeds(job);
+			} else {
+				models = new HmmModel[] { ModelCache.get(job) };
+				seeds = new int[] { 0 };
+			}
+
+			int maxSeed = 0;
+			for (int seed : seeds) {
+				maxSeed = Math.max(maxSeed, seed);
+			}
+			prevModels = new HmmModel[maxSeed + 1];
+			modelPartOuts = new DataOutputStream[maxSeed + 1];
+			for (int i = 0; i < seeds.length; i++) {
+				prevModels[seeds[i]] = models[i];
+			}
+		} catch (Exception e) {
 			failure = true;
 			failureString = e.toString();
 		}
+
+		trace = job.getBoolean(ExpectationMapper.TRACE_KEY, false);
+		normalize = job.getBoolean(NORMALIZE_KEY, true);
+		splitNumBuckets = MaximizationPartitioner.getNumBuckets(job);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (groupSize > 0) {
+			long startNanos = System.nanoTime();
+			outputGroup();
+			reporter.incrCounter(EMCounters.MAXIMIZATION_NANOS, System.nanoTime() - startNanos);
+		}
+
+		if (modelPartOuts != null) {
+			for (DataOutputStream modelPartOut : modelPartOuts) {
+				if (modelPartOut != null) {
+					HmmModelFile.closeParameters(modelPartOut);
+					modelPartOut.close();
+				}
+			}
+		}
+	}
+
+	private void addToGroup(int toId, double logCount) {
+		if (groupSize == groupToIds.length) {
+			groupToIds = Arrays.copyOf(groupToIds, groupSize * 2);
+			groupLogCounts = Arrays.copyOf(groupLogCounts, groupSize * 2);
+		}
+
+		groupToIds[groupSize] = toId;
+		groupLogCounts[groupSize] = logCount;
+		groupSize++;
 	}
 
 	/**
-	 * Outputs the transition log counts as EMModelParameters.
+	 * Normalizes the counts of the buffered group to get the new model probabilities (unless NORMALIZE_KEY is
+	 * false), and outputs them both as EMModelParameters and to this reducer's binary model part file of the
+	 * model. The bucket of a split state is only output to the part file, unnormalized.
 	 */
-	private static void outputTransitionLogCounts(Map<StringPair, Double> transLogCounts,
-			OutputCollector<NullWritable, EMModelParameter> output) throws IOException {
-		outputLogCounts(transLogCounts, output, EMModelParameter.PARAMETER_TYPE_TRANSITION);
+	private void outputGroup() throws IOException {
+		boolean split = groupParameterType == EMModelParameter.PARAMETER_TYPE_EMISSION
+				&& groupFromId < splitNumBuckets.length && splitNumBuckets[groupFromId] > 1;
+		double logCountSum = normalize && !split ? LogMath.log2SumExp2(groupLogCounts, 0, groupSize) : 0.0;
+
+		HmmModel prevModel = prevModels[groupSeed];
+		DataOutputStream modelPartOut = modelPartOuts[groupSeed];
+		if (modelPartOut == null) {
+			Path workOutputPath = FileOutputFormat.getWorkOutputPath(job);
+			Path modelPartPath = new Path(new Path(workOutputPath, Integer.toString(groupSeed)),
+					FileOutputFormat.getUniqueName(job, HmmModelFile.PART_FILE_NAME) + HmmModelFile.PART_FILE_SUFFIX);
+			modelPartOut = workOutputPath.getFileSystem(job).create(modelPartPath, false);
+			modelPartOuts[groupSeed] = modelPartOut;
+		}
+
+		outputSeed.set(groupSeed);
+		boolean isTransition = groupParameterType == EMModelParameter.PARAMETER_TYPE_TRANSITION;
+		outputParam.setParameterType(groupParameterType);
+		outputParam.getTransFromStateOrEmisState().set(
+				groupFromId < 0 ? prevModel.getStartState() : prevModel.getState(groupFromId));
+
+		for (int i = 0; i < groupSize; i++) {
+			int toId = groupToIds[i];
+			double logProb = groupLogCounts[i] - logCountSum;
+
+			if (!split) {
+				outputParam.getTransToStateOrEmisToken().set(
+						isTransition ? prevModel.getState(toId) : prevModel.getToken(toId));
+				outputParam.setLogCount(logProb);
+				output.collect(outputSeed, outputParam);
+			}
+
+			HmmModelFile.writeParameter(modelPartOut, groupParameterType, groupFromId, toId, logProb);
+		}
+
+		reporter.incrCounter(split ? EMCounters.SPLIT_GROUPS : EMCounters.NORMALIZED_GROUPS, 1);
+		reporter.incrCounter(EMCounters.OUTPUT_PARAMETERS, groupSize);
+		if (trace) {
+			logger.info("Normalized " + groupSize + " parameters of seed " + groupSeed + " of type " + groupParameterType
+					+ " from " + outputParam.getTransFromStateOrEmisState() + ", log count sum " + logCountSum);
+		}
+
+		groupSize = 0;
 	}
 
 	/**
-	 * Outputs the emission log counts as EMModelParameters.
+	 * Outputs the total log alpha of a model to a specially named file in its output directory.
 	 */
-	private static void outputEmissionLogCounts(Map<StringPair, Double> emisLogCounts,
-			OutputCollector<NullWritable, EMModelParameter> output) throws IOException {
-		outputLogCounts(emisLogCounts, output, EMModelParameter.PARAMETER_TYPE_EMISSION);
+	private void writeTotalLogAlpha(int seed, double totalLogAlpha) throws IOException {
+		String totalLogAlphaPathStr = outputPathStr + "/" + seed + "/" + TOTAL_LOG_ALPHA_FILE_NAME;
+		Path totalLogAlphaPath = new Path(totalLogAlphaPathStr);
+
+		FileSystem fs = NativeS3FileSystem.get(bucketURI, new Configuration());
+		FSDataOutputStream totalLogAlphaOut = fs.create(totalLogAlphaPath, false);
+
+		EMModelParameter totalLogAlphaObject = EMModelParameter.makeAlphaObject(totalLogAlpha);
+		totalLogAlphaOut.write(totalLogAlphaObject.toString().getBytes());
+
+		totalLogAlphaOut.close();
 	}
 
 	/**
-	 * Outputs the log counts as EMModelParameters.
+	 * Writes the model parameters of each model to a subdirectory of the output directory named after its seed,
+	 * as the TextOutputFormat of the part file would, without the key.
 	 */
-	private static void outputLogCounts(Map<StringPair, Double> logCounts,
-			OutputCollector<NullWritable, EMModelParameter> output, char parameterType) throws IOException {
-		for (Entry<StringPair, Double> entry : logCounts.entrySet()) {
-			if (entry.getValue() != null) { // Only output if prob > 0.
-				EMModelParameter param = new EMModelParameter(parameterType, new Text(entry.getKey().getX()), new Text(
-						entry.getKey().getY()), entry.getValue());
-				System.out.println("Log count: " + entry.getValue());
-				System.out.println("Param: " + param);
-				output.collect(NullWritable.get(), param);
-			}
+	public static class SeedOutputFormat extends MultipleTextOutputFormat<IntWritable, EMModelParameter> {
+
+		@Override
+		protected String generateFileNameForKeyValue(IntWritable seed, EMModelParameter value, String name) {
+			return seed.get() + "/" + name;
 		}
+
+		@Override
+		protected IntWritable generateActualKey(IntWritable seed, EMModelParameter value) {
+			return null;
+		}
+
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM-wide cache of loaded HmmModels, so that when Hadoop reuses task JVMs (mapred.job.reuse.jvm.num.tasks)
+ * later tasks do not read and intern the same model again.
+ *
+ * Models are keyed by their model parameters directory and EM iteration. Adding the model of an iteration
+ * drops the models of earlier iterations, which no task will ask for again, and the least recently used models
+ * are evicted once the estimated size of the cached models exceeds a fraction of the maximum heap. The structures
+ * the kernels derive from a model are built before it is cached (see HmmModel.buildDerivedStructures), so that
+ * its size includes them.
+ */
+public class ModelCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+
+	/**
+	 * Fraction of the maximum heap the cached models may take up. Defaults to 0.5; 0 disables the cache.
+	 */
+	public static final String MEMORY_FRACTION_KEY = "hmmem.model_cache.memory_fraction";
+	/**
+	 * EM iteration of the model parameters given by ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY or
+	 * MODEL_PARAMETERS_DIR_PATHS_KEY.
+	 */
+	public static final String ITERATION_KEY = "hmmem.iteration";
+
+	// Access-ordered, so iteration goes from the least to the most recently used model.
+	private static final LinkedHashMap<String, CachedModel> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private static long cachedBytes = 0;
+
+	private static class CachedModel {
+		private final HmmModel model;
+		private final int iteration;
+		private final long sizeInBytes;
+
+		private CachedModel(HmmModel model, int iteration) {
+			this.model = model;
+			this.iteration = iteration;
+			sizeInBytes = model.estimateSizeInBytes();
+		}
+	}
+
+	/**
+	 * Returns the model for the task, loading it with HmmModelFile.load if it is not cached yet.
+	 */
+	public static HmmModel get(JobConf job) throws Exception {
+		return get(job, job.get(ExpectationMapper.MODEL_PARAMETERS_DIR_PATH_KEY));
+	}
+
+	/**
+	 * Returns the models of the random seeds of an EM job (see ExpectationMapper.MODEL_SEEDS_KEY), in the order
+	 * of their seeds.
+	 */
+	public static HmmModel[] getAll(JobConf job) throws Exception {
+		String[] modelPaths = job.getStrings(ExpectationMapper.MODEL_PARAMETERS_DIR_PATHS_KEY);
+		HmmModel[] models = new HmmModel[modelPaths.length];
+		for (int i = 0; i < modelPaths.length; i++) {
+			models[i] = get(job, modelPaths[i]);
+		}
+		return models;
+	}
+
+	/**
+	 * Returns the model in the given model parameters directory, loading it if it is not cached yet.
+	 */
+	public static synchronized HmmModel get(JobConf job, String modelPath) throws Exception {
+		int iteration = job.getInt(ITERATION_KEY, -1);
+		String key = modelPath + "@" + iteration;
+
+		CachedModel cachedModel = cache.get(key);
+		if (cachedModel != null) {
+			logger.info("Reusing cached model " + key);
+			return cachedModel.model;
+		}
+
+		HmmModel model = HmmModelFile.load(job, modelPath);
+		model.buildDerivedStructures();
+
+		long maxBytes = (long) (Runtime.getRuntime().maxMemory() * job.getFloat(MEMORY_FRACTION_KEY, 0.5f));
+		put(key, new CachedModel(model, iteration), maxBytes);
+
+		return model;
+	}
+
+	private static void put(String key, CachedModel cachedModel, long maxBytes) {
+		Iterator<Entry<String, CachedModel>> iter = cache.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<String, CachedModel> entry = iter.next();
+			if (entry.getValue().iteration < cachedModel.iteration
+					|| cachedBytes + cachedModel.sizeInBytes > maxBytes) {
+				logger.info("Evicting cached model " + entry.getKey());
+				cachedBytes -= entry.getValue().sizeInBytes;
+				iter.remove();
+			}
+		}
+
+		if (cachedBytes + cachedModel.sizeInBytes <= maxBytes) {
+			cache.put(key, cachedModel);
+			cachedBytes += cachedModel.sizeInBytes;
+		}
+	}
+
+}
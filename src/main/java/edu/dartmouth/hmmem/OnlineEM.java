@@ -0,0 +1,96 @@
+package edu.dartmouth.hmmem;
+
+/**
+ * Running sufficient statistics of online (stepwise) EM, after Liang and Klein, "Online EM for unsupervised
+ * models" (2009), for one random seed (see EMDriver.ONLINE_KEY).
+ *
+ * The corpus is processed in mini-batches. The expected counts of the k-th mini-batch (k = 0, 1, ...), divided
+ * by its number of sequences, are blended into the statistics with the step size (k + 1)^-decay, so the first
+ * mini-batch replaces the statistics, and the model is renormalized from the statistics after every mini-batch.
+ * Decays in (0.5, 1] make the step sizes satisfy the conditions for convergence; smaller decays forget old
+ * mini-batches faster.
+ *
+ * The statistics are kept in an ExpectedCounts object with the layout of the model, so that they are normalized
+ * exactly as the counts of a batch EM iteration (see LocalEMEngine.maximize).
+ */
+public class OnlineEM {
+
+	/**
+	 * Decay of the step size. Defaults to 0.7.
+	 */
+	public static final String DECAY_KEY = "hmmem.online.decay";
+	/**
+	 * Number of sequences per mini-batch when EM runs in the driver's process. Defaults to 1000.
+	 */
+	public static final String BATCH_SIZE_KEY = "hmmem.online.batch_size";
+	/**
+	 * Number of input files per mini-batch, i.e. per job, when EM runs as MapReduce jobs. Defaults to 1.
+	 */
+	public static final String BATCH_FILES_KEY = "hmmem.online.batch_files";
+
+	private final ExpectedCounts statistics;
+	private final double decay;
+	private int numUpdates = 0;
+
+	public OnlineEM(HmmModel model, double decay) {
+		statistics = new ExpectedCounts(model);
+		this.decay = decay;
+	}
+
+	public int getNumUpdates() {
+		return numUpdates;
+	}
+
+	/**
+	 * Returns the step size of the next mini-batch.
+	 */
+	public double getStepSize() {
+		return Math.pow(numUpdates + 1, -decay);
+	}
+
+	/**
+	 * Blends the expected counts of a mini-batch of the given number of sequences into the statistics, and
+	 * returns the model normalized from them, over the same states and tokens as the given model.
+	 */
+	public HmmModel update(HmmModel model, ExpectedCounts batchCounts, int numBatchSequences) {
+		double stepSize = getStepSize();
+		double scale = stepSize / numBatchSequences;
+
+		blend(statistics.getStartCounts(), batchCounts.getStartCounts(), stepSize, scale);
+		blend(statistics.getTransCounts(), batchCounts.getTransCounts(), stepSize, scale);
+		blend(statistics.getEmisCounts(), batchCounts.getEmisCounts(), stepSize, scale);
+		numUpdates++;
+
+		return LocalEMEngine.maximize(model, statistics);
+	}
+
+	/**
+	 * Blends the expected counts of a mini-batch of the given number of sequences, as written by an EM job that
+	 * does not normalize them (see MaximizationReducer.NORMALIZE_KEY) and merged into a model of log counts, into
+	 * the statistics. Returns the model normalized from them, over the same states and tokens as the given model.
+	 */
+	public HmmModel update(HmmModel model, HmmModel batchLogCounts, int numBatchSequences) {
+		double stepSize = getStepSize();
+		double scale = stepSize / numBatchSequences;
+
+		// The job sums the counts of starting in a state into the transitions of the start state if it is also a
+		// regular state.
+		if (batchLogCounts.getStartStateId() < 0) {
+			blend(statistics.getStartCounts(), batchLogCounts.getStartProbs(), stepSize, scale);
+		} else {
+			blend(statistics.getStartCounts(), new double[model.getNumStates()], stepSize, scale);
+		}
+		blend(statistics.getTransCounts(), batchLogCounts.getTransProbs(), stepSize, scale);
+		blend(statistics.getEmisCounts(), batchLogCounts.getEmisProbs(), stepSize, scale);
+		numUpdates++;
+
+		return LocalEMEngine.maximize(model, statistics);
+	}
+
+	private static void blend(double[] statistics, double[] batchCounts, double stepSize, double scale) {
+		for (int i = 0; i < statistics.length; i++) {
+			statistics[i] = (1.0 - stepSize) * statistics[i] + scale * batchCounts[i];
+		}
+	}
+
+}
@@ -0,0 +1,695 @@
+package edu.dartmouth.hmmem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Forward-backward kernel that splits a long observation sequence into segments and processes them in parallel,
+ * so that a corpus of a few very long lines (one per map task) can still use all cores of the task.
+ *
+ * The forward recursion is linear, Forward(i) = Forward(i-1) * A * D(i), with A the transition matrix and D(i) the
+ * diagonal matrix of P(obs(i)|state), and the backward recursion uses the same matrices from the other side,
+ * Backward(i-1) = A * D(i) * Backward(i). The transfer matrix P = A D(b) A D(b+1) ... A D(e-1) of the segment of
+ * positions [b, e) therefore carries the forward vector at b-1 to the one at e-1, and the backward vector at e-1
+ * to the one at b-1, and the transfer matrices combine associatively. The kernel runs in three phases:
+ *
+ * 1. In parallel, every segment but the first computes the rows of its transfer matrix of the states that emit
+ * obs(b-1), the only ones with a non-zero forward probability at b-1, and the first segment runs the forward
+ * recursion from the start probabilities.
+ * 2. A scan over the segments recovers the exact boundary vectors: the forward vectors from left to right and the
+ * backward vectors from right to left, at one vector-matrix product per segment. There are only as many
+ * segments as threads, so the scan is sequential.
+ * 3. In parallel, every segment runs scaled forward-backward (as ScaledForwardBackward) between its boundary
+ * vectors and accumulates its expected counts, which are then added up. The posteriors of a segment are
+ * normalized by the sum of its forward times backward column, which is the same at all of its positions, so the
+ * boundary backward vectors only need to be right up to a factor.
+ *
+ * Vectors and transfer rows are scaled to sum to 1, with base 2 log scales. Phase 1 costs a forward pass over the
+ * segment per state emitting obs(b-1), so the kernel pays off when tokens have few possible states compared to
+ * the number of cores. Sequences shorter than two segments of MIN_SEGMENT_LENGTH_KEY, and sequences whose
+ * vectors underflow, are handed to ScaledForwardBackward. Memory is O(N * T), as in ScaledForwardBackward.
+ *
+ * The segments run on a pool of daemon threads shared by all instances in the JVM with the same number of threads,
+ * so that the kernels of the threads of a multithreaded map task share the cores.
+ */
+public class ParallelForwardBackward extends ForwardBackward {
+
+	/**
+	 * Number of segments a sequence is split into, and of threads in the pool. Defaults to the number of
+	 * processors.
+	 */
+	public static final String THREADS_KEY = "hmmem.forward_backward.parallel.threads";
+	/**
+	 * Minimum number of positions per segment. Defaults to DEFAULT_MIN_SEGMENT_LENGTH.
+	 */
+	public static final String MIN_SEGMENT_LENGTH_KEY = "hmmem.forward_backward.parallel.min_segment_length";
+	public static final int DEFAULT_MIN_SEGMENT_LENGTH = 10000;
+
+	// The shared pools, by number of threads.
+	private static final Map<Integer, ExecutorService> pools = new HashMap<Integer, ExecutorService>();
+
+	private final ExecutorService pool;
+
+	private final ScaledForwardBackward scaledForwardBackward;
+	private final int numThreads;
+	private final int minSegmentLength;
+
+	private final Segment[] segments;
+	// Forward vector at the last position, where the forward scan ends.
+	private final double[] lastForward;
+
+	public ParallelForwardBackward(HmmModel model, int numThreads, int minSegmentLength) {
+		super(model);
+
+		scaledForwardBackward = new ScaledForwardBackward(model);
+		this.numThreads = Math.max(numThreads, 1);
+		this.minSegmentLength = Math.max(minSegmentLength, 1);
+		segments = new Segment[this.numThreads];
+		lastForward = new double[numStates];
+		pool = getPool(this.numThreads);
+	}
+
+	@Override
+	public double accumulate(int[] observations, ExpectedCounts counts) {
+		int numObs = observations.length;
+		int numSegments = Math.min(numThreads, numObs / minSegmentLength);
+		if (numSegments < 2) {
+			return scaledForwardBackward.accumulate(observations, counts);
+		}
+
+		for (int j = 0; j < numSegments; j++) {
+			if (segments[j] == null) {
+				segments[j] = new Segment();
+			}
+			segments[j].set(observations, (int) ((long) numObs * j / numSegments),
+					(int) ((long) numObs * (j + 1) / numSegments));
+		}
+
+		// Phase 1: the forward matrix of the first segment and the transfer rows of the others.
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(numSegments);
+		for (int j = 0; j < numSegments; j++) {
+			final Segment segment = segments[j];
+			final boolean first = j == 0;
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return first ? segment.calculateForwardMatrix(null) : segment.calculateTransferRows();
+				}
+			});
+		}
+		if (!runAll(tasks)) {
+			return scaledForwardBackward.accumulate(observations, counts);
+		}
+
+		// Phase 2: the boundary vectors.
+		double logAlpha = scanForward(numSegments);
+		if (logAlpha == Double.NEGATIVE_INFINITY || !scanBackward(numSegments)) {
+			return scaledForwardBackward.accumulate(observations, counts);
+		}
+
+		// Phase 3: the expected counts of every segment.
+		tasks.clear();
+		for (int j = 0; j < numSegments; j++) {
+			final Segment segment = segments[j];
+			final boolean first = j == 0;
+			tasks.add(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return segment.accumulate(first);
+				}
+			});
+		}
+		if (!runAll(tasks)) {
+			return scaledForwardBackward.accumulate(observations, counts);
+		}
+
+		for (int j = 0; j < numSegments; j++) {
+			counts.add(segments[j].counts);
+		}
+		counts.addLogAlpha(logAlpha);
+
+		return logAlpha;
+	}
+
+	/**
+	 * Posteriors are computed by ScaledForwardBackward, in one thread.
+	 */
+	@Override
+	public double posteriors(int[] observations, double[] posteriors) {
+		return scaledForwardBackward.posteriors(observations, posteriors);
+	}
+
+	/**
+	 * Carries the forward vector at the end of the first segment through the transfer matrices of the others,
+	 * setting their boundary forward vectors. Returns log alpha, or Double.NEGATIVE_INFINITY if a vector is 0.
+	 */
+	private double scanForward(int numSegments) {
+		Segment first = segments[0];
+		double logScale = 0.0;
+		for (int i = 0; i < first.length; i++) {
+			logScale += LogMath.log2(first.scales[i]);
+		}
+		System.arraycopy(first.forwardMatrix, (first.length - 1) * numStates, segments[1].boundaryForward, 0,
+				numStates);
+
+		for (int j = 1; j < numSegments; j++) {
+			double[] nextForward = j + 1 < numSegments ? segments[j + 1].boundaryForward : lastForward;
+			logScale += segments[j].transferForward(nextForward);
+			if (logScale == Double.NEGATIVE_INFINITY) {
+				return logScale;
+			}
+		}
+
+		return logScale;
+	}
+
+	/**
+	 * Carries the backward vector at the last position back through the transfer matrices, setting the boundary
+	 * backward vectors of the segments. Returns false if a vector is 0.
+	 */
+	private boolean scanBackward(int numSegments) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		Segment last = segments[numSegments - 1];
+		int lastObs = last.observations[last.end - 1];
+		Arrays.fill(last.boundaryBackward, 0.0);
+		for (int entry = emisOffsets[lastObs]; entry < emisOffsets[lastObs + 1]; entry++) {
+			last.boundaryBackward[emittingStates[entry]] = 1.0;
+		}
+
+		for (int j = numSegments - 1; j > 0; j--) {
+			if (!segments[j].transferBackward(segments[j - 1].boundaryBackward)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns whether all of them returned true.
+	 */
+	private boolean runAll(List<Callable<Boolean>> tasks) {
+		try {
+			boolean success = true;
+			for (Future<Boolean> future : pool.invokeAll(tasks)) {
+				success &= future.get();
+			}
+			return success;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the shared pool of the given number of threads, creating it on first use.
+	 */
+	private static synchronized ExecutorService getPool(int numThreads) {
+		ExecutorService pool = pools.get(numThreads);
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "forward-backward-segment");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pools.put(numThreads, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * The positions [begin, end) of the sequence, with the matrices, boundary vectors and counts of the segment.
+	 * Position i of the segment's matrices is position begin + i of the sequence.
+	 */
+	private class Segment {
+
+		private int[] observations;
+		private int begin;
+		private int end;
+		private int length;
+
+		private double[] forwardMatrix = new double[0];
+		private double[] backwardMatrix = new double[0];
+		private double[] scales = new double[0];
+
+		// The rows of the transfer matrix of the states emitting observations[begin - 1], scaled to sum to 1,
+		// and their log scales.
+		private double[] transferRows = new double[0];
+		private double[] transferLogScales = new double[0];
+		private double[] column = new double[numStates];
+		private double[] prevColumn = new double[numStates];
+
+		// Scaled forward vector at begin - 1 and backward vector at end - 1.
+		private final double[] boundaryForward = new double[numStates];
+		private final double[] boundaryBackward = new double[numStates];
+
+		// Scratch column as in ScaledForwardBackward.
+		private final double[] nextColumn = new double[numStates];
+
+		private ExpectedCounts counts;
+
+		private void set(int[] observations, int begin, int end) {
+			this.observations = observations;
+			this.begin = begin;
+			this.end = end;
+			length = end - begin;
+
+			if (scales.length < length) {
+				forwardMatrix = new double[length * numStates];
+				backwardMatrix = new double[length * numStates];
+				scales = new double[length];
+			}
+		}
+
+		/**
+		 * Fills in the scaled forward matrix of the segment from the given forward vector at begin - 1, or from
+		 * the start probabilities if it is null. Returns false if a column sums to 0.
+		 */
+		private boolean calculateForwardMatrix(double[] prevForward) {
+			double[] startProbs = model.getStartProbs();
+			int[] predecessorOffsets = graph.getPredecessorOffsets();
+			int[] predecessorStates = graph.getPredecessorStates();
+			double[] predecessorProbs = graph.getPredecessorProbs();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			double[] emisProbs = emissionIndex.getEmisProbs();
+
+			for (int i = 0; i < length; i++) {
+				int prevOffset = (i - 1) * numStates;
+				int offset = i * numStates;
+				int obs = observations[begin + i];
+
+				Arrays.fill(forwardMatrix, offset, offset + numStates, 0.0);
+				for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+					int state = emittingStates[entry];
+
+					double sum;
+					if (i == 0 && prevForward == null) {
+						sum = startProbs[state];
+					} else {
+						// Forward(i-1, prevState) * P(state|prevState)
+						double[] prev = i == 0 ? prevForward : forwardMatrix;
+						int base = i == 0 ? 0 : prevOffset;
+						sum = 0.0;
+						for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+							sum += prev[base + predecessorStates[edge]] * predecessorProbs[edge];
+						}
+					}
+
+					forwardMatrix[offset + state] = sum * emisProbs[entry];
+				}
+
+				double scale = scaleColumn(forwardMatrix, offset, obs);
+				if (scale == 0.0) {
+					return false;
+				}
+				scales[i] = scale;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Computes the rows of the transfer matrix of the states emitting observations[begin - 1], each by a
+		 * forward pass over the segment from the unit vector of its state. A row is 0, with log scale
+		 * Double.NEGATIVE_INFINITY, if the segment cannot follow its state.
+		 */
+		private boolean calculateTransferRows() {
+			int[] predecessorOffsets = graph.getPredecessorOffsets();
+			int[] predecessorStates = graph.getPredecessorStates();
+			double[] predecessorProbs = graph.getPredecessorProbs();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			double[] emisProbs = emissionIndex.getEmisProbs();
+
+			int prevObs = observations[begin - 1];
+			int numRows = emisOffsets[prevObs + 1] - emisOffsets[prevObs];
+			if (transferLogScales.length < numRows) {
+				transferRows = new double[numRows * numStates];
+				transferLogScales = new double[numRows];
+			}
+
+			for (int row = 0; row < numRows; row++) {
+				Arrays.fill(prevColumn, 0.0);
+				prevColumn[emittingStates[emisOffsets[prevObs] + row]] = 1.0;
+
+				double logScale = 0.0;
+				for (int i = begin; i < end && logScale != Double.NEGATIVE_INFINITY; i++) {
+					int obs = observations[i];
+
+					Arrays.fill(column, 0.0);
+					for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+						int state = emittingStates[entry];
+
+						double sum = 0.0;
+						for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+							sum += prevColumn[predecessorStates[edge]] * predecessorProbs[edge];
+						}
+
+						column[state] = sum * emisProbs[entry];
+					}
+
+					double scale = scaleColumn(column, 0, obs);
+					logScale = scale == 0.0 ? Double.NEGATIVE_INFINITY : logScale + LogMath.log2(scale);
+
+					double[] swap = prevColumn;
+					prevColumn = column;
+					column = swap;
+				}
+
+				System.arraycopy(prevColumn, 0, transferRows, row * numStates, numStates);
+				transferLogScales[row] = logScale;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Sets the given vector to the boundary forward vector of the segment times its transfer matrix, i.e. the
+		 * forward vector at end - 1, scaled to sum to 1. Returns the log of the scale, or Double.NEGATIVE_INFINITY
+		 * if the vector is 0.
+		 */
+		private double transferForward(double[] nextForward) {
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			int prevObs = observations[begin - 1];
+			int lastObs = observations[end - 1];
+
+			// The rows are weighted relative to the one with the largest scale.
+			double maxLogScale = Double.NEGATIVE_INFINITY;
+			for (int entry = emisOffsets[prevObs], row = 0; entry < emisOffsets[prevObs + 1]; entry++, row++) {
+				if (boundaryForward[emittingStates[entry]] > 0.0) {
+					maxLogScale = Math.max(maxLogScale, transferLogScales[row]);
+				}
+			}
+			if (maxLogScale == Double.NEGATIVE_INFINITY) {
+				return maxLogScale;
+			}
+
+			Arrays.fill(nextForward, 0.0);
+			for (int entry = emisOffsets[prevObs], row = 0; entry < emisOffsets[prevObs + 1]; entry++, row++) {
+				double weight = boundaryForward[emittingStates[entry]]
+						* LogMath.exp2(transferLogScales[row] - maxLogScale);
+				if (weight == 0.0) {
+					continue;
+				}
+
+				int rowOffset = row * numStates;
+				for (int lastEntry = emisOffsets[lastObs]; lastEntry < emisOffsets[lastObs + 1]; lastEntry++) {
+					int state = emittingStates[lastEntry];
+					nextForward[state] += weight * transferRows[rowOffset + state];
+				}
+			}
+
+			double scale = scaleColumn(nextForward, 0, lastObs);
+			return scale == 0.0 ? Double.NEGATIVE_INFINITY : maxLogScale + LogMath.log2(scale);
+		}
+
+		/**
+		 * Sets the given vector to the transfer matrix of the segment times its boundary backward vector, i.e. the
+		 * backward vector at begin - 1 up to a factor, with a largest entry of 1. Returns false if the vector is 0.
+		 */
+		private boolean transferBackward(double[] prevBackward) {
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			int prevObs = observations[begin - 1];
+			int lastObs = observations[end - 1];
+
+			// The log entries first, relative to the largest.
+			Arrays.fill(prevBackward, 0.0);
+			double maxLogProb = Double.NEGATIVE_INFINITY;
+			for (int entry = emisOffsets[prevObs], row = 0; entry < emisOffsets[prevObs + 1]; entry++, row++) {
+				int rowOffset = row * numStates;
+				double sum = 0.0;
+				for (int lastEntry = emisOffsets[lastObs]; lastEntry < emisOffsets[lastObs + 1]; lastEntry++) {
+					int state = emittingStates[lastEntry];
+					sum += transferRows[rowOffset + state] * boundaryBackward[state];
+				}
+
+				double logProb = LogMath.log2(sum) + transferLogScales[row];
+				prevBackward[emittingStates[entry]] = logProb;
+				maxLogProb = Math.max(maxLogProb, logProb);
+			}
+			if (maxLogProb == Double.NEGATIVE_INFINITY) {
+				return false;
+			}
+
+			for (int entry = emisOffsets[prevObs]; entry < emisOffsets[prevObs + 1]; entry++) {
+				int state = emittingStates[entry];
+				prevBackward[state] = LogMath.exp2(prevBackward[state] - maxLogProb);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Runs forward-backward over the segment between its boundary vectors (the forward matrix of the first
+		 * segment is already filled in) and sets its counts to the expected counts of its positions, including
+		 * the transitions into its first position. Returns false if a column sums to 0.
+		 */
+		private boolean accumulate(boolean first) {
+			if (!first && !calculateForwardMatrix(boundaryForward)) {
+				return false;
+			}
+			calculateBackwardMatrix();
+
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+
+			// Sum of Forward(i, state) * Backward(i, state), which is the same at every position of the segment.
+			int lastObs = observations[end - 1];
+			int lastOffset = (length - 1) * numStates;
+			double sum = 0.0;
+			for (int entry = emisOffsets[lastObs]; entry < emisOffsets[lastObs + 1]; entry++) {
+				int state = emittingStates[entry];
+				sum += forwardMatrix[lastOffset + state] * backwardMatrix[lastOffset + state];
+			}
+			if (sum == 0.0) {
+				return false;
+			}
+			double inverse = 1.0 / sum;
+
+			if (counts == null) {
+				counts = new ExpectedCounts(model);
+			}
+			counts.clear();
+
+			if (first) {
+				accumulateStartCounts(inverse);
+			} else {
+				accumulateBoundaryTransitionCounts(inverse);
+			}
+			accumulateTransitionCounts(inverse);
+			accumulateEmissionCounts(inverse);
+
+			return true;
+		}
+
+		/**
+		 * Fills in the backward matrix of the segment from its boundary backward vector, scaling column i by
+		 * c(i+1). Only the states emitting observation i are filled in.
+		 */
+		private void calculateBackwardMatrix() {
+			int[] successorOffsets = graph.getSuccessorOffsets();
+			int[] successorStates = graph.getSuccessorStates();
+			double[] successorProbs = graph.getSuccessorProbs();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+
+			int lastObs = observations[end - 1];
+			int lastOffset = (length - 1) * numStates;
+			for (int entry = emisOffsets[lastObs]; entry < emisOffsets[lastObs + 1]; entry++) {
+				int state = emittingStates[entry];
+				backwardMatrix[lastOffset + state] = boundaryBackward[state];
+			}
+
+			for (int i = length - 2; i >= 0; i--) {
+				int offset = i * numStates;
+				int obs = observations[begin + i];
+				fillNextColumn(i + 1);
+
+				for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+					int state = emittingStates[entry];
+
+					// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1)
+					double sum = 0.0;
+					for (int edge = successorOffsets[state]; edge < successorOffsets[state + 1]; edge++) {
+						sum += successorProbs[edge] * nextColumn[successorStates[edge]];
+					}
+
+					backwardMatrix[offset + state] = sum;
+				}
+
+				clearNextColumn(i + 1);
+			}
+		}
+
+		private void accumulateStartCounts(double inverse) {
+			double[] startCounts = counts.getStartCounts();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			int firstObs = observations[begin];
+
+			for (int entry = emisOffsets[firstObs]; entry < emisOffsets[firstObs + 1]; entry++) {
+				int state = emittingStates[entry];
+				startCounts[state] += forwardMatrix[state] * backwardMatrix[state] * inverse;
+			}
+		}
+
+		/**
+		 * Accumulates the transitions from begin - 1, whose forward vector is the boundary forward vector, into
+		 * the first position of the segment.
+		 */
+		private void accumulateBoundaryTransitionCounts(double inverse) {
+			int[] successorOffsets = graph.getSuccessorOffsets();
+			int[] successorStates = graph.getSuccessorStates();
+			double[] successorProbs = graph.getSuccessorProbs();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			double[] transCounts = counts.getTransCounts();
+			int prevObs = observations[begin - 1];
+
+			fillNextColumn(0);
+			for (int entry = emisOffsets[prevObs]; entry < emisOffsets[prevObs + 1]; entry++) {
+				int fromState = emittingStates[entry];
+				double forwardProb = boundaryForward[fromState] * inverse;
+				if (forwardProb == 0.0) {
+					continue;
+				}
+
+				int transOffset = fromState * numStates;
+				for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+					int toState = successorStates[edge];
+					transCounts[transOffset + toState] += forwardProb * successorProbs[edge] * nextColumn[toState];
+				}
+			}
+			clearNextColumn(0);
+		}
+
+		private void accumulateTransitionCounts(double inverse) {
+			int[] successorOffsets = graph.getSuccessorOffsets();
+			int[] successorStates = graph.getSuccessorStates();
+			double[] successorProbs = graph.getSuccessorProbs();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			double[] transCounts = counts.getTransCounts();
+
+			for (int i = 0; i < length - 1; i++) {
+				int offset = i * numStates;
+				int obs = observations[begin + i];
+				fillNextColumn(i + 1);
+
+				for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+					int fromState = emittingStates[entry];
+					double forwardProb = forwardMatrix[offset + fromState] * inverse;
+					if (forwardProb == 0.0) {
+						continue;
+					}
+
+					int transOffset = fromState * numStates;
+					for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+						int toState = successorStates[edge];
+						transCounts[transOffset + toState] += forwardProb * successorProbs[edge] * nextColumn[toState];
+					}
+				}
+
+				clearNextColumn(i + 1);
+			}
+		}
+
+		private void accumulateEmissionCounts(double inverse) {
+			double[] emisCounts = counts.getEmisCounts();
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+
+			for (int i = 0; i < length; i++) {
+				int offset = i * numStates;
+				int obs = observations[begin + i];
+				int emisOffset = obs * numStates;
+				counts.markToken(obs);
+
+				for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+					int state = emittingStates[entry];
+					emisCounts[emisOffset + state] += forwardMatrix[offset + state] * backwardMatrix[offset + state]
+							* inverse;
+				}
+			}
+		}
+
+		/**
+		 * Sets nextColumn[nextState] = P(nextObs|nextState) * Backward(next, nextState) / c(next) for the states
+		 * emitting the observation at position next of the segment.
+		 */
+		private void fillNextColumn(int next) {
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			double[] emisProbs = emissionIndex.getEmisProbs();
+			int nextObs = observations[begin + next];
+			int nextOffset = next * numStates;
+			double scale = scales[next];
+
+			for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+				int nextState = emittingStates[entry];
+				nextColumn[nextState] = emisProbs[entry] * backwardMatrix[nextOffset + nextState] / scale;
+			}
+		}
+
+		/**
+		 * Resets the entries set by fillNextColumn(next) to 0.
+		 */
+		private void clearNextColumn(int next) {
+			int[] emisOffsets = emissionIndex.getOffsets();
+			int[] emittingStates = emissionIndex.getEmittingStates();
+			int nextObs = observations[begin + next];
+
+			for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+				nextColumn[emittingStates[entry]] = 0.0;
+			}
+		}
+
+	}
+
+	/**
+	 * Divides the column at the given offset, whose non-zero cells are those of the states emitting obs, by its
+	 * sum, and returns the sum (0 if the column is 0, which is then left unchanged).
+	 */
+	private double scaleColumn(double[] matrix, int offset, int obs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		double sum = 0.0;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			sum += matrix[offset + emittingStates[entry]];
+		}
+
+		if (sum == 0.0) {
+			return sum;
+		}
+
+		double inverse = 1.0 / sum;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			matrix[offset + emittingStates[entry]] *= inverse;
+		}
+
+		return sum;
+	}
+
+}
@@ -0,0 +1,125 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map-only posterior (max-marginal) decoding of every sequence of the corpus (see
+ * EMDriver.POSTERIOR_DECODING_KEY): runs an exact forward-backward kernel (see
+ * ForwardBackward.createForPosteriors) over the sequence and writes, under its byte offset, the state with the
+ * highest posterior at every position, and the TOP_K_KEY best states with their posteriors if set, as a
+ * StatePosteriors to a SequenceFile. Unlike the Viterbi path, the best states of consecutive positions need not
+ * be connected by a transition, but each of them is the state that minimizes the expected number of mistagged
+ * tokens.
+ *
+ * Sequences with probability 0 under the model cannot be decoded and are counted and left out, as empty lines
+ * are.
+ */
+public class PosteriorDecodingMapper extends MapReduceBase implements
+		Mapper<LongWritable, Writable, LongWritable, StatePosteriors> {
+
+	private static final Logger logger = LoggerFactory.getLogger(PosteriorDecodingMapper.class);
+
+	/**
+	 * Number of states per position whose posteriors are written, best first. Defaults to 0, which writes only the
+	 * best state of every position.
+	 */
+	public static final String TOP_K_KEY = "hmmem.posterior_decoding.top_k";
+
+	private HmmModel model;
+	private ForwardBackward forwardBackward;
+	// The posterior of every (position, state) cell, grown to the longest sequence.
+	private double[] posteriors = new double[0];
+	private final StatePosteriors statePosteriors = new StatePosteriors();
+	private int topK;
+
+	private boolean trace;
+
+	private boolean failure = false;
+	private String failureString;
+
+	@Override
+	public void map(LongWritable byteOffset, Writable value, OutputCollector<LongWritable, StatePosteriors> output,
+			Reporter reporter) throws IOException {
+		if (failure) {
+			throw new IOException(failureString);
+		}
+
+		int[] observations;
+		if (value instanceof EncodedObservationSequence) {
+			observations = ((EncodedObservationSequence) value).getTokenIds();
+		} else {
+			observations = TokenizerMapper.encodeLine(model, value.toString(), reporter);
+			if (observations == null) {
+				return;
+			}
+		}
+
+		int numStates = model.getNumStates();
+		if (posteriors.length < observations.length * numStates) {
+			posteriors = new double[observations.length * numStates];
+		}
+
+		long startNanos = System.nanoTime();
+		double logAlpha = forwardBackward.posteriors(observations, posteriors);
+		reporter.incrCounter(EMCounters.FORWARD_BACKWARD_NANOS, System.nanoTime() - startNanos);
+
+		if (trace) {
+			logger.info("Sequence at " + byteOffset + ": " + observations.length + " tokens, log alpha " + logAlpha);
+		}
+
+		if (logAlpha == Double.NEGATIVE_INFINITY) {
+			reporter.incrCounter(EMCounters.ZERO_PROBABILITY_SEQUENCES, 1);
+			return;
+		}
+
+		// Only the states that emit the observation at a position have a non-zero posterior there.
+		EmissionIndex emissionIndex = model.getEmissionIndex();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		statePosteriors.reset(observations.length, topK);
+		for (int i = 0; i < observations.length; i++) {
+			int obs = observations[i];
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+				statePosteriors.offer(i, state, posteriors[i * numStates + state]);
+			}
+		}
+
+		reporter.incrCounter(EMCounters.TAGGED_SEQUENCES, 1);
+		reporter.incrCounter(EMCounters.TAGGED_TOKENS, observations.length);
+
+		output.collect(byteOffset, statePosteriors);
+	}
+
+	/**
+	 * Runs before each map. Loads the model parameters (see HmmModelFile.load), or reuses them if an earlier task
+	 * in the same JVM loaded them.
+	 */
+	@Override
+	public void configure(JobConf job) {
+		try {
+			model = ModelCache.get(job);
+			forwardBackward = ForwardBackward.createForPosteriors(job, model);
+		} catch (Exception e) {
+			failure = true;
+			failureString = e.toString();
+
+			logger.error(failureString);
+		}
+
+		topK = job.getInt(TOP_K_KEY, 0);
+		trace = job.getBoolean(ExpectationMapper.TRACE_KEY, false);
+	}
+
+}
@@ -0,0 +1,309 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Forward-backward kernel in linear space with per-position scaling (Rabiner).
+ *
+ * Every forward column is divided by its sum c(i), so that it sums to 1, and every backward column i is divided
+ * by c(i+1). Then log alpha = sum of log c(i), the posterior of a state at i is simply
+ * Forward(i, state) * Backward(i, state), and the posterior of a transition from i to i+1 is
+ * Forward(i, from) * P(to|from) * P(obs(i+1)|to) * Backward(i+1, to) / c(i+1). The inner loops therefore only
+ * multiply and add; logarithms are taken once per position for alpha and once per count when it is output.
+ *
+ * Scaling keeps the columns in range on arbitrarily long sequences. A column can still underflow to 0 if a
+ * single position has a probability below the smallest double (about 2^-1074); such sequences are handed to
+ * LogForwardBackward, which also gives the exact answer for sequences with probability 0.
+ *
+ * Transitions are read from the TransitionGraph, so each position costs O(number of transitions), and only the
+ * states that emit the observation at a position (see EmissionIndex) are visited. As in LogForwardBackward,
+ * forward columns are complete and backward cells are only computed for the emitting states.
+ */
+public class ScaledForwardBackward extends ForwardBackward {
+
+	private final LogForwardBackward logForwardBackward;
+
+	private double[] forwardMatrix = new double[0];
+	private double[] backwardMatrix = new double[0];
+	private double[] scales = new double[0];
+
+	// Scratch column holding P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1) for the states emitting
+	// nextObs, and 0 for all other states between uses.
+	private final double[] nextColumn;
+
+	public ScaledForwardBackward(HmmModel model) {
+		super(model);
+
+		logForwardBackward = new LogForwardBackward(model);
+		nextColumn = new double[numStates];
+	}
+
+	@Override
+	public double accumulate(int[] observations, ExpectedCounts counts) {
+		int numObs = observations.length;
+		ensureCapacity(numObs);
+
+		if (!calculateForwardMatrix(observations)) {
+			return logForwardBackward.accumulate(observations, counts);
+		}
+
+		double logAlpha = 0.0;
+		for (int i = 0; i < numObs; i++) {
+			logAlpha += LogMath.log2(scales[i]);
+		}
+
+		calculateBackwardMatrix(observations);
+
+		accumulateStartCounts(observations, counts);
+		accumulateTransitionCounts(observations, counts);
+		accumulateEmissionCounts(observations, counts);
+
+		counts.addLogAlpha(logAlpha);
+
+		return logAlpha;
+	}
+
+	@Override
+	public double posteriors(int[] observations, double[] posteriors) {
+		int numObs = observations.length;
+		ensureCapacity(numObs);
+
+		if (!calculateForwardMatrix(observations)) {
+			return logForwardBackward.posteriors(observations, posteriors);
+		}
+
+		double logAlpha = 0.0;
+		for (int i = 0; i < numObs; i++) {
+			logAlpha += LogMath.log2(scales[i]);
+		}
+
+		calculateBackwardMatrix(observations);
+
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		for (int i = 0; i < numObs; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+
+			Arrays.fill(posteriors, offset, offset + numStates, 0.0);
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+				posteriors[offset + state] = forwardMatrix[offset + state] * backwardMatrix[offset + state];
+			}
+		}
+
+		return logAlpha;
+	}
+
+	/**
+	 * Fills in the scaled forward matrix and the scales. Returns false if a column sums to 0.
+	 */
+	private boolean calculateForwardMatrix(int[] observations) {
+		double[] startProbs = model.getStartProbs();
+		int[] predecessorOffsets = graph.getPredecessorOffsets();
+		int[] predecessorStates = graph.getPredecessorStates();
+		double[] predecessorProbs = graph.getPredecessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisProbs = emissionIndex.getEmisProbs();
+
+		// P(state|#) * P(firstObservation|state)
+		Arrays.fill(forwardMatrix, 0, numStates, 0.0);
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			forwardMatrix[state] = startProbs[state] * emisProbs[entry];
+		}
+		if (!scaleColumn(forwardMatrix, 0, observations[0])) {
+			return false;
+		}
+
+		for (int i = 1; i < observations.length; i++) {
+			int prevOffset = (i - 1) * numStates;
+			int offset = i * numStates;
+			int obs = observations[i];
+
+			Arrays.fill(forwardMatrix, offset, offset + numStates, 0.0);
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+
+				// Forward(i-1, prevState) * P(state|prevState)
+				double sum = 0.0;
+				for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+					sum += forwardMatrix[prevOffset + predecessorStates[edge]] * predecessorProbs[edge];
+				}
+
+				forwardMatrix[offset + state] = sum * emisProbs[entry];
+			}
+			if (!scaleColumn(forwardMatrix, i, obs)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fills in the backward matrix, scaling column i by c(i+1). Only the states emitting observation i are
+	 * filled in.
+	 */
+	private void calculateBackwardMatrix(int[] observations) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorProbs = graph.getSuccessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		int lastObs = observations[observations.length - 1];
+		int lastOffset = (observations.length - 1) * numStates;
+		for (int entry = emisOffsets[lastObs]; entry < emisOffsets[lastObs + 1]; entry++) {
+			backwardMatrix[lastOffset + emittingStates[entry]] = 1.0;
+		}
+
+		for (int i = observations.length - 2; i >= 0; i--) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			fillNextColumn(observations[i + 1], i + 1);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+
+				// P(nextState|state) * P(nextObs|nextState) * Backward(i+1, nextState) / c(i+1)
+				double sum = 0.0;
+				for (int edge = successorOffsets[state]; edge < successorOffsets[state + 1]; edge++) {
+					sum += successorProbs[edge] * nextColumn[successorStates[edge]];
+				}
+
+				backwardMatrix[offset + state] = sum;
+			}
+
+			clearNextColumn(observations[i + 1]);
+		}
+	}
+
+	private void accumulateStartCounts(int[] observations, ExpectedCounts counts) {
+		double[] startCounts = counts.getStartCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			startCounts[state] += forwardMatrix[state] * backwardMatrix[state];
+		}
+	}
+
+	private void accumulateTransitionCounts(int[] observations, ExpectedCounts counts) {
+		int[] successorOffsets = graph.getSuccessorOffsets();
+		int[] successorStates = graph.getSuccessorStates();
+		double[] successorProbs = graph.getSuccessorProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] transCounts = counts.getTransCounts();
+
+		for (int i = 0; i < observations.length - 1; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			fillNextColumn(observations[i + 1], i + 1);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int fromState = emittingStates[entry];
+				double forwardProb = forwardMatrix[offset + fromState];
+				if (forwardProb == 0.0) {
+					continue;
+				}
+
+				int transOffset = fromState * numStates;
+				for (int edge = successorOffsets[fromState]; edge < successorOffsets[fromState + 1]; edge++) {
+					int toState = successorStates[edge];
+					transCounts[transOffset + toState] += forwardProb * successorProbs[edge] * nextColumn[toState];
+				}
+			}
+
+			clearNextColumn(observations[i + 1]);
+		}
+	}
+
+	private void accumulateEmissionCounts(int[] observations, ExpectedCounts counts) {
+		double[] emisCounts = counts.getEmisCounts();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int i = 0; i < observations.length; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+			int emisOffset = obs * numStates;
+			counts.markToken(obs);
+
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+				emisCounts[emisOffset + state] += forwardMatrix[offset + state] * backwardMatrix[offset + state];
+			}
+		}
+	}
+
+	/**
+	 * Sets nextColumn[nextState] = P(nextObs|nextState) * Backward(next, nextState) / c(next) for the states
+	 * emitting nextObs.
+	 */
+	private void fillNextColumn(int nextObs, int next) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisProbs = emissionIndex.getEmisProbs();
+		int nextOffset = next * numStates;
+		double scale = scales[next];
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			int nextState = emittingStates[entry];
+			nextColumn[nextState] = emisProbs[entry] * backwardMatrix[nextOffset + nextState] / scale;
+		}
+	}
+
+	/**
+	 * Resets the entries set by fillNextColumn(nextObs, ...) to 0.
+	 */
+	private void clearNextColumn(int nextObs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+
+		for (int entry = emisOffsets[nextObs]; entry < emisOffsets[nextObs + 1]; entry++) {
+			nextColumn[emittingStates[entry]] = 0.0;
+		}
+	}
+
+	/**
+	 * Divides column i, whose non-zero cells are those of the states emitting obs, by its sum and records the sum
+	 * as the scale of position i. Returns false if the sum is 0.
+	 */
+	private boolean scaleColumn(double[] matrix, int i, int obs) {
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		int offset = i * numStates;
+
+		double sum = 0.0;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			sum += matrix[offset + emittingStates[entry]];
+		}
+
+		if (sum == 0.0) {
+			return false;
+		}
+
+		scales[i] = sum;
+		double inverse = 1.0 / sum;
+		for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+			matrix[offset + emittingStates[entry]] *= inverse;
+		}
+
+		return true;
+	}
+
+	private void ensureCapacity(int numObs) {
+		if (scales.length < numObs) {
+			forwardMatrix = new double[numObs * numStates];
+			backwardMatrix = new double[numObs * numStates];
+			scales = new double[numObs];
+		}
+	}
+
+}
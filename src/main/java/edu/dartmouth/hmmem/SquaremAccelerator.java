@@ -0,0 +1,216 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * SQUAREM acceleration of the EM iterations of the random seeds (see EMDriver.SQUAREM_KEY), after Varadhan and
+ * Roland, "Simple and globally convergent methods for accelerating the convergence of any EM algorithm" (2008).
+ *
+ * Every cycle takes two plain EM steps from a base model, theta1 = EM(theta0) and theta2 = EM(theta1), and
+ * extrapolates along r = theta1 - theta0 and v = theta2 - 2 theta1 + theta0 to theta' = theta0 - 2 a r + a^2 v,
+ * with the step length a = -|r| / |v|, clamped to [-maxStepLength, -1] (at a == -1, theta' == theta2). The next EM
+ * step runs from theta' and yields its total log alpha, which is the safeguard: if it is below that of theta1, the
+ * extrapolation is rejected and EM resumes from theta2, and otherwise EM(theta') is the base model of the next
+ * cycle. As in the reference implementation, the maximum step length of a seed starts at 1 and grows by a factor
+ * of STEP_FACTOR whenever a step of the maximum length is accepted; a rejection shrinks it by the same factor.
+ *
+ * The extrapolation works on the log probabilities, so the extrapolated probabilities stay positive, and the
+ * transitions from each state and the emissions of each state are renormalized afterwards. A probability that is
+ * 0 in any of the three models is taken from theta2.
+ */
+public class SquaremAccelerator {
+
+	private static final Logger logger = LoggerFactory.getLogger(SquaremAccelerator.class);
+
+	// Subdirectory of an iteration directory to which the driver writes the extrapolated model.
+	public static final String EXTRAPOLATED_MODEL_DIR_NAME = "extrapolated";
+
+	private static final double STEP_FACTOR = 4.0;
+
+	// The models of the current cycle and the maximum step length of each seed, indexed by seed.
+	private final HmmModel[] baseModels;
+	private final HmmModel[] firstModels;
+	private final HmmModel[] secondModels;
+	private final int[] numSteps;
+	private final boolean[] extrapolated;
+	private final double[] maxStepLengths;
+	private final double[] stepLengths;
+
+	public SquaremAccelerator(int numRandomSeeds) {
+		baseModels = new HmmModel[numRandomSeeds];
+		firstModels = new HmmModel[numRandomSeeds];
+		secondModels = new HmmModel[numRandomSeeds];
+		numSteps = new int[numRandomSeeds];
+		extrapolated = new boolean[numRandomSeeds];
+		maxStepLengths = new double[numRandomSeeds];
+		Arrays.fill(maxStepLengths, 1.0);
+		stepLengths = new double[numRandomSeeds];
+	}
+
+	/**
+	 * Starts a cycle of the given seed at the given base model.
+	 */
+	public void start(int seed, HmmModel model) {
+		baseModels[seed] = model;
+		firstModels[seed] = null;
+		secondModels[seed] = null;
+		numSteps[seed] = 0;
+		extrapolated[seed] = false;
+	}
+
+	/**
+	 * Returns whether the next EM step of the given seed runs from an extrapolated model, whose total log alpha
+	 * the driver must check with accept or reject.
+	 */
+	public boolean isExtrapolated(int seed) {
+		return extrapolated[seed];
+	}
+
+	/**
+	 * Records the model of a plain EM step of the given seed. Returns the extrapolated model from which EM should
+	 * continue if the step completes a cycle, or null if EM continues from the given model.
+	 */
+	public HmmModel step(int seed, HmmModel model) {
+		if (numSteps[seed] == 0) {
+			firstModels[seed] = model;
+			numSteps[seed] = 1;
+			return null;
+		}
+
+		secondModels[seed] = model;
+		extrapolated[seed] = true;
+		return extrapolate(seed, baseModels[seed], firstModels[seed], model, maxStepLengths[seed]);
+	}
+
+	/**
+	 * Accepts the extrapolated model of the given seed, and starts the next cycle at the model of the EM step that
+	 * ran from it.
+	 */
+	public void accept(int seed, HmmModel model) {
+		if (-stepLengths[seed] >= maxStepLengths[seed]) {
+			maxStepLengths[seed] *= STEP_FACTOR;
+		}
+		start(seed, model);
+	}
+
+	/**
+	 * Rejects the extrapolated model of the given seed, and returns the model theta2 of the last plain EM step,
+	 * from which EM resumes as the base model of the next cycle.
+	 */
+	public HmmModel reject(int seed) {
+		HmmModel model = secondModels[seed];
+		maxStepLengths[seed] = Math.max(maxStepLengths[seed] / STEP_FACTOR, 1.0);
+		start(seed, model);
+		return model;
+	}
+
+	/**
+	 * Returns theta0 - 2 a r + a^2 v, renormalized.
+	 */
+	private HmmModel extrapolate(int seed, HmmModel model0, HmmModel model1, HmmModel model2, double maxStepLength) {
+		boolean separateStart = model2.getStartStateId() < 0;
+
+		double[] norms = new double[2];
+		if (separateStart) {
+			addSquaredNorms(model0.getStartLogProbs(), model1.getStartLogProbs(), model2.getStartLogProbs(), norms);
+		}
+		addSquaredNorms(model0.getTransLogProbs(), model1.getTransLogProbs(), model2.getTransLogProbs(), norms);
+		addSquaredNorms(model0.getEmisLogProbs(), model1.getEmisLogProbs(), model2.getEmisLogProbs(), norms);
+
+		double stepLength = norms[1] > 0 ? -Math.sqrt(norms[0] / norms[1]) : -1.0;
+		stepLength = Math.max(Math.min(stepLength, -1.0), -maxStepLength);
+		stepLengths[seed] = stepLength;
+
+		HmmModel model = model2.emptyCopy();
+		int numStates = model.getNumStates();
+
+		if (separateStart) {
+			double[] startLogProbs = extrapolate(model0.getStartLogProbs(), model1.getStartLogProbs(),
+					model2.getStartLogProbs(), stepLength);
+			double sum = LogMath.log2SumExp2(startLogProbs, 0, numStates);
+			for (int toState = 0; toState < numStates; toState++) {
+				if (startLogProbs[toState] != Double.NEGATIVE_INFINITY) {
+					model.setTransLogProb(-1, toState, startLogProbs[toState] - sum);
+				}
+			}
+		}
+
+		double[] transLogProbs = extrapolate(model0.getTransLogProbs(), model1.getTransLogProbs(),
+				model2.getTransLogProbs(), stepLength);
+		for (int fromState = 0; fromState < numStates; fromState++) {
+			int offset = fromState * numStates;
+			double sum = LogMath.log2SumExp2(transLogProbs, offset, numStates);
+			for (int toState = 0; toState < numStates; toState++) {
+				if (transLogProbs[offset + toState] != Double.NEGATIVE_INFINITY) {
+					model.setTransLogProb(fromState, toState, transLogProbs[offset + toState] - sum);
+				}
+			}
+		}
+
+		// Emissions are token-major, so sum them per state first.
+		double[] emisLogProbs = extrapolate(model0.getEmisLogProbs(), model1.getEmisLogProbs(),
+				model2.getEmisLogProbs(), stepLength);
+		double[] stateSums = new double[numStates];
+		Arrays.fill(stateSums, LogMath.LOG_ZERO);
+		for (int tokenId = 0; tokenId < model.getNumTokens(); tokenId++) {
+			for (int state = 0; state < numStates; state++) {
+				stateSums[state] = LogMath.log2Add(stateSums[state], emisLogProbs[tokenId * numStates + state]);
+			}
+		}
+		for (int tokenId = 0; tokenId < model.getNumTokens(); tokenId++) {
+			for (int state = 0; state < numStates; state++) {
+				double logProb = emisLogProbs[tokenId * numStates + state];
+				if (logProb != Double.NEGATIVE_INFINITY) {
+					model.setEmisLogProb(state, tokenId, logProb - stateSums[state]);
+				}
+			}
+		}
+
+		logger.info("Extrapolated random seed " + seed + " with step length " + stepLength + " (|r| "
+				+ Math.sqrt(norms[0]) + ", |v| " + Math.sqrt(norms[1]) + ").");
+
+		return model;
+	}
+
+	/**
+	 * Adds the squared norms of r and v over the parameters that are non-zero in all three models to norms[0] and
+	 * norms[1].
+	 */
+	private static void addSquaredNorms(double[] logProbs0, double[] logProbs1, double[] logProbs2, double[] norms) {
+		for (int i = 0; i < logProbs2.length; i++) {
+			if (logProbs0[i] == Double.NEGATIVE_INFINITY || logProbs1[i] == Double.NEGATIVE_INFINITY
+					|| logProbs2[i] == Double.NEGATIVE_INFINITY) {
+				continue;
+			}
+
+			double r = logProbs1[i] - logProbs0[i];
+			double v = logProbs2[i] - 2 * logProbs1[i] + logProbs0[i];
+			norms[0] += r * r;
+			norms[1] += v * v;
+		}
+	}
+
+	private static double[] extrapolate(double[] logProbs0, double[] logProbs1, double[] logProbs2,
+			double stepLength) {
+		double[] logProbs = new double[logProbs2.length];
+		for (int i = 0; i < logProbs.length; i++) {
+			if (logProbs0[i] == Double.NEGATIVE_INFINITY || logProbs1[i] == Double.NEGATIVE_INFINITY
+					|| logProbs2[i] == Double.NEGATIVE_INFINITY) {
+				logProbs[i] = logProbs2[i];
+				continue;
+			}
+
+			double r = logProbs1[i] - logProbs0[i];
+			double v = logProbs2[i] - 2 * logProbs1[i] + logProbs0[i];
+			logProbs[i] = logProbs0[i] - 2 * stepLength * r + stepLength * stepLength * v;
+		}
+
+		return logProbs;
+	}
+
+}
@@ -0,0 +1,179 @@
+package edu.dartmouth.hmmem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Posterior (max-marginal) decoding of an observation sequence, as written by PosteriorDecodingMapper: for every
+ * position, the states with the highest posterior probability of having emitted its observation, best first, as
+ * state ids of the model (listed in EMDriver.STATES_FILE_NAME next to the output). Without top-k posteriors only
+ * the best state of every position is kept.
+ *
+ * Serialized as vint length and vint top k, followed, for every position, by the vint best state id if top k is 0,
+ * and otherwise by the vint number of states kept (at most top k, fewer if fewer states emit the observation) and
+ * that many pairs of vint state id and float posterior. A tagging over fewer than 2^7 states thus takes one byte per
+ * token, and five per kept posterior.
+ */
+public class StatePosteriors implements Writable {
+
+	private int length = 0;
+	private int topK = 0;
+	// The kept states of position i are at [i * max(topK, 1), i * max(topK, 1) + numKept[i]).
+	private int[] numKept = new int[0];
+	private int[] states = new int[0];
+	private float[] posteriors = new float[0];
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getTopK() {
+		return topK;
+	}
+
+	/**
+	 * Returns the state with the highest posterior at the given position.
+	 */
+	public int getBestState(int position) {
+		return states[position * stride()];
+	}
+
+	public int getNumKept(int position) {
+		return numKept[position];
+	}
+
+	/**
+	 * Returns the state with the rank-th highest posterior at the given position (0 for the best).
+	 */
+	public int getState(int position, int rank) {
+		return states[position * stride() + rank];
+	}
+
+	/**
+	 * Returns the posterior of the state with the rank-th highest posterior at the given position, or NaN if it
+	 * was read from a decoding without top k, whose posteriors are not serialized.
+	 */
+	public float getPosterior(int position, int rank) {
+		return posteriors[position * stride() + rank];
+	}
+
+	/**
+	 * Clears the decoding and sizes it for a sequence of the given length, reusing the arrays if they are large
+	 * enough.
+	 */
+	public void reset(int length, int topK) {
+		this.length = length;
+		this.topK = topK;
+
+		int size = length * stride();
+		if (states.length < size) {
+			states = new int[size];
+			posteriors = new float[size];
+		}
+		if (numKept.length < length) {
+			numKept = new int[length];
+		}
+		Arrays.fill(numKept, 0, length, 0);
+	}
+
+	/**
+	 * Offers a state with the given posterior at the given position, which keeps it if it is among the top k (or
+	 * is the best state, if top k is 0) of the states offered so far at the position.
+	 */
+	public void offer(int position, int state, double posterior) {
+		int offset = position * stride();
+		int kept = numKept[position];
+
+		// Insertion into the descending list, dropping its last element if it is full.
+		int rank = kept;
+		while (rank > 0 && posteriors[offset + rank - 1] < posterior) {
+			rank--;
+		}
+		if (rank == stride()) {
+			return;
+		}
+
+		int last = Math.min(kept, stride() - 1);
+		for (int i = last; i > rank; i--) {
+			states[offset + i] = states[offset + i - 1];
+			posteriors[offset + i] = posteriors[offset + i - 1];
+		}
+		states[offset + rank] = state;
+		posteriors[offset + rank] = (float) posterior;
+		numKept[position] = last + 1;
+	}
+
+	private int stride() {
+		return Math.max(topK, 1);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		reset(WritableUtils.readVInt(in), WritableUtils.readVInt(in));
+
+		for (int position = 0; position < length; position++) {
+			int offset = position * stride();
+			if (topK == 0) {
+				states[offset] = WritableUtils.readVInt(in);
+				posteriors[offset] = Float.NaN;
+				numKept[position] = 1;
+				continue;
+			}
+
+			numKept[position] = WritableUtils.readVInt(in);
+			for (int rank = 0; rank < numKept[position]; rank++) {
+				states[offset + rank] = WritableUtils.readVInt(in);
+				posteriors[offset + rank] = in.readFloat();
+			}
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, length);
+		WritableUtils.writeVInt(out, topK);
+
+		for (int position = 0; position < length; position++) {
+			int offset = position * stride();
+			if (topK == 0) {
+				WritableUtils.writeVInt(out, states[offset]);
+				continue;
+			}
+
+			WritableUtils.writeVInt(out, numKept[position]);
+			for (int rank = 0; rank < numKept[position]; rank++) {
+				WritableUtils.writeVInt(out, states[offset + rank]);
+				out.writeFloat(posteriors[offset + rank]);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int position = 0; position < length; position++) {
+			if (position > 0) {
+				sb.append(' ');
+			}
+
+			if (topK == 0) {
+				sb.append(getBestState(position));
+				continue;
+			}
+
+			for (int rank = 0; rank < numKept[position]; rank++) {
+				if (rank > 0) {
+					sb.append(',');
+				}
+				sb.append(getState(position, rank)).append(':').append(getPosterior(position, rank));
+			}
+		}
+		return sb.toString();
+	}
+
+}
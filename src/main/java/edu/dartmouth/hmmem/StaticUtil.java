@@ -2,63 +2,37 @@ package edu.dartmouth.hmmem;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.hadoop.fs.FSDataInputStream;
 
+import zx.soft.utils.LogMath;
+
 /**
  * 静态工具类，包含了分布式HMM-EM的相关方法
  */
 public class StaticUtil {
 
 	/**
-	 * Given two numbers log(x) and log(y), returns log(x+y). If both log(x) and log(y) are negative,
-	 * calculates the log of the sum in the following manner to reduce the risk of underflow:
-	 * Finds log(z) = min(log(x), log(y)). Then adds log(z) to both log(x) and log(y) before
-	 * exponentiating, adds the two exponentiations, takes the log of the sum, and then
-	 * subtracts log(z). This calculation works properly because z*x + z*y = z*(x+y),
-	 * so 2^(log(z)+log(x)) + 2^(log(z)+log(y)) = 2^(log(z)+log(x+y)).
-	 * Thus, log(2^(log(z)+log(x)) + 2^(log(z)+log(y))) = log(2^(log(z)+log(x+y))) = log(z)+log(x+y).
+	 * Given two numbers log(x) and log(y), returns log(x+y), using LogMath.log2Add.
 	 *
 	 * Note: If logx (logy) is passed as null, then x (y) is interpreted as 0. If both parameters
 	 * are passed as null, then null is returned.
 	 */
 	public static Double calcLogSumOfLogs(Double logX, Double logY) {
-		if (logX == null && logY == null) {
-			return null;
-		} else if (logX == null) {
+		if (logX == null) {
 			return logY;
 		} else if (logY == null) {
 			return logX;
 		}
 
-		if (logX >= 0 || logY >= 0) {
-			double x = Math.pow(2, logX);
-			double y = Math.pow(2, logY);
-
-			double logSum = Math.log(x + y) / Math.log(2);
-			return logSum;
-		}
-
-		double logZ = Math.max(logX, logY) * -1.0;
-		double scaledLogX = logX + logZ;
-		double scaledLogY = logY + logZ;
-
-		double scaledX = Math.pow(2, scaledLogX);
-		double scaledY = Math.pow(2, scaledLogY);
-
-		double logScaledSum = Math.log(scaledX + scaledY) / Math.log(2);
-		double logSum = logScaledSum - logZ;
-
-		if (!(Double.isNaN(logX) || Double.isNaN(logY))) {
-			System.out.println("logX = " + logX + ", logY = " + logY + ", logSum = " + logSum);
-		}
-
-		return logSum;
+		return LogMath.log2Add(logX, logY);
 	}
 
 	/**
@@ -115,6 +89,54 @@ public class StaticUtil {
 		return stateSet;
 	}
 
+	/**
+	 * Makes a map from each state to the states with a non-zero probability transition into it (its
+	 * predecessors), so that the Viterbi and forward passes only visit transitions that exist. Transitions from
+	 * a start state that is not also a state of the state set are left out.
+	 */
+	public static Map<String, List<String>> makePredecessorMapFromTransDict(Map<StringPair, Double> transDict,
+			Set<String> stateSet) {
+		Map<String, List<String>> predecessorMap = new HashMap<String, List<String>>();
+		for (String state : stateSet) {
+			predecessorMap.put(state, new ArrayList<String>());
+		}
+
+		for (Entry<StringPair, Double> entry : transDict.entrySet()) {
+			String fromState = entry.getKey().getX();
+			if (entry.getValue() != null && stateSet.contains(fromState)) {
+				predecessorMap.get(entry.getKey().getY()).add(fromState);
+			}
+		}
+
+		return predecessorMap;
+	}
+
+	/**
+	 * Makes a map from each token to the states of the state set that emit it with a non-zero probability, so
+	 * that the Viterbi pass only visits the states that can be at a position.
+	 */
+	public static Map<String, List<String>> makeEmittingStateMapFromEmisDict(Map<StringPair, Double> emisDict,
+			Set<String> stateSet) {
+		Map<String, List<String>> emittingStateMap = new HashMap<String, List<String>>();
+
+		for (Entry<StringPair, Double> entry : emisDict.entrySet()) {
+			String state = entry.getKey().getX();
+			String token = entry.getKey().getY();
+			if (entry.getValue() == null || !stateSet.contains(state)) {
+				continue;
+			}
+
+			List<String> emittingStates = emittingStateMap.get(token);
+			if (emittingStates == null) {
+				emittingStates = new ArrayList<String>();
+				emittingStateMap.put(token, emittingStates);
+			}
+			emittingStates.add(state);
+		}
+
+		return emittingStateMap;
+	}
+
 	/**
 	 * Reads the given model parameters file and fills in the transition and emission
 	 * log probabilities maps.
@@ -22,6 +22,24 @@ public class TaggedObservationSequence implements Writable {
 		this.byteOffset = new LongWritable(byteOffset);
 	}
 
+	/**
+	 * Replaces the tagged observations with the given token ids and state ids of the model.
+	 */
+	public void set(LongWritable byteOffset, HmmModel model, int[] observations, int[] states) {
+		setByteOffset(byteOffset);
+		obsTags.clear();
+		for (int i = 0; i < observations.length; i++) {
+			obsTags.add(new StringPair(model.getToken(observations[i]), model.getState(states[i])));
+		}
+	}
+
+	/**
+	 * Removes all tagged observations, so that the object can be reused for the next sequence.
+	 */
+	public void clear() {
+		obsTags.clear();
+	}
+
 	public void appendObsTag(StringPair obsTag) {
 		obsTags.add(obsTag);
 	}
@@ -34,6 +52,7 @@ public class TaggedObservationSequence implements Writable {
 	public void readFields(DataInput in) throws IOException {
 		byteOffset.readFields(in);
 
+		obsTags.clear();
 		int length = in.readInt();
 
 		for (int i = 0; i < length; i++) {
@@ -0,0 +1,94 @@
+package edu.dartmouth.hmmem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map-only job that converts the text corpus into the tokenized corpus read by the EM and Viterbi jobs when
+ * EMDriver.TOKENIZED_CORPUS_KEY is set: a SequenceFile of the byte offset of each line and the line coded with
+ * the token ids of the model of iteration 0, which all iterations and random seeds share.
+ *
+ * Empty lines, and lines with a token no state can emit (which have probability 0), are left out.
+ */
+public class TokenizerMapper extends MapReduceBase implements
+		Mapper<LongWritable, Text, LongWritable, EncodedObservationSequence> {
+
+	private static final Logger logger = LoggerFactory.getLogger(TokenizerMapper.class);
+
+	private HmmModel model;
+	private final EncodedObservationSequence outputValue = new EncodedObservationSequence();
+
+	private boolean failure = false;
+	private String failureString;
+
+	@Override
+	public void map(LongWritable byteOffset, Text value,
+			OutputCollector<LongWritable, EncodedObservationSequence> output, Reporter reporter) throws IOException {
+		if (failure) {
+			throw new IOException(failureString);
+		}
+
+		int[] observations = encodeLine(model, value.toString(), reporter);
+		if (observations == null) {
+			return;
+		}
+
+		reporter.incrCounter(EMCounters.SEQUENCES, 1);
+		reporter.incrCounter(EMCounters.TOKENS, observations.length);
+
+		outputValue.setTokenIds(observations);
+		output.collect(byteOffset, outputValue);
+	}
+
+	/**
+	 * Splits an input line into tokens and maps them to token ids. Returns null, and counts the line, if it is
+	 * empty or contains a token no state can emit.
+	 */
+	public static int[] encodeLine(HmmModel model, String line, Reporter reporter) {
+		List<String> observationSequence = new ArrayList<String>();
+		for (String obs : line.trim().split("\\s+")) {
+			String trimmedObs = obs.trim();
+			if (trimmedObs.length() != 0) {
+				observationSequence.add(trimmedObs);
+			}
+		}
+
+		if (observationSequence.size() == 0) {
+			reporter.incrCounter(EMCounters.EMPTY_SEQUENCES, 1);
+			return null;
+		}
+
+		int[] observations = model.encodeObservationSequence(observationSequence);
+		if (observations == null) {
+			// The sequence contains a token no state can emit, so alpha == 0.
+			reporter.incrCounter(EMCounters.UNKNOWN_TOKEN_SEQUENCES, 1);
+			return null;
+		}
+
+		return observations;
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		try {
+			model = ModelCache.get(job);
+		} catch (Exception e) {
+			failure = true;
+			failureString = e.toString();
+
+			logger.error(failureString);
+		}
+	}
+
+}
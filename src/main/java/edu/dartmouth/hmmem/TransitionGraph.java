@@ -0,0 +1,141 @@
+package edu.dartmouth.hmmem;
+
+/**
+ * The transitions of an HmmModel with non-zero probability, as successor and predecessor adjacency lists in
+ * compressed sparse row form, so that forward-backward and Viterbi cost O(E * T) instead of O(N^2 * T) for
+ * sparse (e.g. left-to-right or banded) topologies.
+ *
+ * The successors of state s are successorStates[successorOffsets[s] .. successorOffsets[s+1]), in increasing
+ * order, and successorLogProbs/successorProbs hold log P(to|s)/P(to|s) of the same edges. The predecessor
+ * arrays are the same for the edges into a state. Transitions from the start state, when it is not a regular
+ * state, are not part of the graph (see HmmModel.getStartLogProbs).
+ *
+ * The graph is a snapshot of the model's transition probabilities when it was built.
+ */
+public class TransitionGraph {
+
+	private final int numEdges;
+
+	private final int[] successorOffsets;
+	private final int[] successorStates;
+	private final double[] successorLogProbs;
+	private final double[] successorProbs;
+
+	private final int[] predecessorOffsets;
+	private final int[] predecessorStates;
+	private final double[] predecessorLogProbs;
+	private final double[] predecessorProbs;
+
+	private final int maxInDegree;
+	private final int maxOutDegree;
+
+	public TransitionGraph(HmmModel model) {
+		int numStates = model.getNumStates();
+		double[] transLogProbs = model.getTransLogProbs();
+		double[] transProbs = model.getTransProbs();
+
+		successorOffsets = new int[numStates + 1];
+		predecessorOffsets = new int[numStates + 1];
+		for (int from = 0; from < numStates; from++) {
+			for (int to = 0; to < numStates; to++) {
+				if (transLogProbs[from * numStates + to] != Double.NEGATIVE_INFINITY) {
+					successorOffsets[from + 1]++;
+					predecessorOffsets[to + 1]++;
+				}
+			}
+		}
+
+		int maxIn = 0;
+		int maxOut = 0;
+		for (int state = 0; state < numStates; state++) {
+			maxOut = Math.max(maxOut, successorOffsets[state + 1]);
+			maxIn = Math.max(maxIn, predecessorOffsets[state + 1]);
+			successorOffsets[state + 1] += successorOffsets[state];
+			predecessorOffsets[state + 1] += predecessorOffsets[state];
+		}
+		maxInDegree = maxIn;
+		maxOutDegree = maxOut;
+
+		numEdges = successorOffsets[numStates];
+		successorStates = new int[numEdges];
+		successorLogProbs = new double[numEdges];
+		successorProbs = new double[numEdges];
+		predecessorStates = new int[numEdges];
+		predecessorLogProbs = new double[numEdges];
+		predecessorProbs = new double[numEdges];
+
+		// Fill both lists in one pass; from-major order keeps every list sorted by state.
+		int[] predecessorFill = new int[numStates];
+		int successorEdge = 0;
+		for (int from = 0; from < numStates; from++) {
+			for (int to = 0; to < numStates; to++) {
+				int transIndex = from * numStates + to;
+				if (transLogProbs[transIndex] == Double.NEGATIVE_INFINITY) {
+					continue;
+				}
+
+				successorStates[successorEdge] = to;
+				successorLogProbs[successorEdge] = transLogProbs[transIndex];
+				successorProbs[successorEdge] = transProbs[transIndex];
+				successorEdge++;
+
+				int predecessorEdge = predecessorOffsets[to] + predecessorFill[to]++;
+				predecessorStates[predecessorEdge] = from;
+				predecessorLogProbs[predecessorEdge] = transLogProbs[transIndex];
+				predecessorProbs[predecessorEdge] = transProbs[transIndex];
+			}
+		}
+	}
+
+	public int getNumEdges() {
+		return numEdges;
+	}
+
+	public int[] getSuccessorOffsets() {
+		return successorOffsets;
+	}
+
+	public int[] getSuccessorStates() {
+		return successorStates;
+	}
+
+	public double[] getSuccessorLogProbs() {
+		return successorLogProbs;
+	}
+
+	public double[] getSuccessorProbs() {
+		return successorProbs;
+	}
+
+	public int[] getPredecessorOffsets() {
+		return predecessorOffsets;
+	}
+
+	public int[] getPredecessorStates() {
+		return predecessorStates;
+	}
+
+	public double[] getPredecessorLogProbs() {
+		return predecessorLogProbs;
+	}
+
+	public double[] getPredecessorProbs() {
+		return predecessorProbs;
+	}
+
+	public int getMaxInDegree() {
+		return maxInDegree;
+	}
+
+	public int getMaxOutDegree() {
+		return maxOutDegree;
+	}
+
+	/**
+	 * Returns a rough estimate of the heap size of the graph in bytes.
+	 */
+	public long estimateSizeInBytes() {
+		return 4L * (successorOffsets.length + predecessorOffsets.length) + 2L * numEdges * (4 + 8 + 8);
+	}
+
+}
@@ -0,0 +1,133 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Arrays;
+
+/**
+ * Viterbi decoder over an integer-indexed HmmModel.
+ *
+ * The scores are base 2 log probabilities, with Double.NEGATIVE_INFINITY for log(0), kept in two rolling
+ * columns, since the scores at a position only depend on those at the previous one. The best predecessor of
+ * every (position, state) cell is kept in a flat backpointer array indexed [position * numStates + state], of
+ * shorts when the state ids fit in a short and of ints otherwise. As in the forward-backward kernels, only the
+ * states that emit the observation at a position and their predecessors in the TransitionGraph are visited, and
+ * the arrays are reused between sequences and only grow, so decoding allocates nothing per sequence once the
+ * longest sequence has been seen.
+ *
+ * An instance is not thread safe.
+ */
+public class ViterbiDecoder {
+
+	private final HmmModel model;
+	private final int numStates;
+	private final TransitionGraph graph;
+	private final EmissionIndex emissionIndex;
+
+	private double[] column;
+	private double[] prevColumn;
+
+	// Exactly one of the backpointer arrays is used, depending on the number of states.
+	private final boolean shortBackpointers;
+	private short[] shortBackpointerMatrix = new short[0];
+	private int[] intBackpointerMatrix = new int[0];
+
+	public ViterbiDecoder(HmmModel model) {
+		this.model = model;
+		numStates = model.getNumStates();
+		graph = model.getTransitionGraph();
+		emissionIndex = model.getEmissionIndex();
+
+		column = new double[numStates];
+		prevColumn = new double[numStates];
+		shortBackpointers = numStates <= Short.MAX_VALUE;
+	}
+
+	/**
+	 * Finds the most likely state sequence of the observation sequence and writes its state ids to states, which
+	 * must be at least as long as the observations. Returns the log probability of the state sequence together
+	 * with the observations, or Double.NEGATIVE_INFINITY if the observation sequence has probability 0 under the
+	 * model, in which case states is left unchanged.
+	 */
+	public double decode(int[] observations, int[] states) {
+		int numObs = observations.length;
+		ensureCapacity(numObs * numStates);
+
+		double[] startLogProbs = model.getStartLogProbs();
+		int[] predecessorOffsets = graph.getPredecessorOffsets();
+		int[] predecessorStates = graph.getPredecessorStates();
+		double[] predecessorLogProbs = graph.getPredecessorLogProbs();
+		int[] emisOffsets = emissionIndex.getOffsets();
+		int[] emittingStates = emissionIndex.getEmittingStates();
+		double[] emisLogProbs = emissionIndex.getEmisLogProbs();
+
+		// P(state|#) * P(firstObservation|state)
+		Arrays.fill(prevColumn, Double.NEGATIVE_INFINITY);
+		for (int entry = emisOffsets[observations[0]]; entry < emisOffsets[observations[0] + 1]; entry++) {
+			int state = emittingStates[entry];
+			prevColumn[state] = startLogProbs[state] + emisLogProbs[entry];
+		}
+
+		for (int i = 1; i < numObs; i++) {
+			int offset = i * numStates;
+			int obs = observations[i];
+
+			Arrays.fill(column, Double.NEGATIVE_INFINITY);
+			for (int entry = emisOffsets[obs]; entry < emisOffsets[obs + 1]; entry++) {
+				int state = emittingStates[entry];
+
+				// max over prevState of Viterbi(i-1, prevState) * P(state|prevState)
+				double maxLogProb = Double.NEGATIVE_INFINITY;
+				int maxPrevState = -1;
+				for (int edge = predecessorOffsets[state]; edge < predecessorOffsets[state + 1]; edge++) {
+					double logProb = prevColumn[predecessorStates[edge]] + predecessorLogProbs[edge];
+					if (logProb > maxLogProb) {
+						maxLogProb = logProb;
+						maxPrevState = predecessorStates[edge];
+					}
+				}
+
+				column[state] = maxLogProb + emisLogProbs[entry];
+				if (shortBackpointers) {
+					shortBackpointerMatrix[offset + state] = (short) maxPrevState;
+				} else {
+					intBackpointerMatrix[offset + state] = maxPrevState;
+				}
+			}
+
+			double[] swap = prevColumn;
+			prevColumn = column;
+			column = swap;
+		}
+
+		// Find the tagging for the last emission in the sequence.
+		double maxLogProb = Double.NEGATIVE_INFINITY;
+		int maxState = -1;
+		for (int state = 0; state < numStates; state++) {
+			if (prevColumn[state] > maxLogProb) {
+				maxLogProb = prevColumn[state];
+				maxState = state;
+			}
+		}
+
+		if (maxState < 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// Follow the backpointers from the last state.
+		states[numObs - 1] = maxState;
+		for (int i = numObs - 1; i > 0; i--) {
+			int index = i * numStates + states[i];
+			states[i - 1] = shortBackpointers ? shortBackpointerMatrix[index] : intBackpointerMatrix[index];
+		}
+
+		return maxLogProb;
+	}
+
+	private void ensureCapacity(int size) {
+		if (shortBackpointers && shortBackpointerMatrix.length < size) {
+			shortBackpointerMatrix = new short[size];
+		} else if (!shortBackpointers && intBackpointerMatrix.length < size) {
+			intBackpointerMatrix = new int[size];
+		}
+	}
+
+}
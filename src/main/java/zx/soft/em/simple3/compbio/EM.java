@@ -2,6 +2,8 @@ package zx.soft.em.simple3.compbio;
 
 import java.util.Random;
 
+import zx.soft.utils.LogMath;
+
 public class EM {
 
 	// the number of experiments, types of experiments, and the number of possible results
@@ -222,26 +224,15 @@ public class EM {
 
 	/*
 	 * Calculates the log sum of the log values
-	 * in the array. If a value is too small, it
-	 * is ignored. Used to prevent underflow
+	 * in the array (see LogMath), factoring out the
+	 * maximum to prevent underflow
 	 * 
 	 * if you have an array of numbers ( such as 0.003, 0.004) and logp is the array of their logs( -5.809, -5.521) then this method returns the log of the sum of the original numbers (ln(0.007) = -4.96. 
 	 * 
 	 * 
 	 */
 	public static double logsum(double[] logp) {
-		double max = logp[0];
-		for (int x = 1; x < logp.length; x++)
-			if (logp[x] > max)
-				max = logp[x];
-		//System.out.println("max = " + max);
-		double sum = 0.0;
-		for (int x = 0; x < logp.length; x++)
-			if (logp[x] > max - 50.)
-				sum += Math.exp(logp[x] - max);
-		//System.out.println("sum = " +sum);
-		sum = Math.log(sum) + max;
-		return sum;
+		return LogMath.logSumExp(logp);
 	}
 
 	/*
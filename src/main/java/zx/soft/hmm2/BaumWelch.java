@@ -4,6 +4,8 @@ import java.util.Collections;
 import java.util.Random;
 import java.util.Vector;
 
+import zx.soft.utils.LogMath;
+
 public class BaumWelch {
 
 	private static Random r = new Random();
@@ -408,34 +410,15 @@ public class BaumWelch {
 
 	/*
 	 * Calculates the log sum of the log values
-	 * in the array. If a value is too small, it
-	 * is ignored. Used to prevent underflow
+	 * in the array (see LogMath), factoring out the
+	 * maximum to prevent underflow
 	 */
 	public static double logsum(double[] logp) {
 		return logsum(logp, logp.length);
 	}
 
 	public static double logsum(double[] logp, int N) {
-		double max = logp[0];
-		for (int x = 1; x < N; x++)
-			if (logp[x] > max)
-				max = logp[x];
-		double sum = 0.0;
-		for (int x = 0; x < N; x++)
-			if (logp[x] > max - 50.)
-				sum += exp(logp[x] - max);
-		sum = log(sum) + max;
-		return sum;
-	}
-
-	private static double BASE = 2;
-
-	private static double log(double d) {
-		return Math.log(d) / Math.log(BASE);
-	}
-
-	private static double exp(double d) {
-		return Math.pow(BASE, d);
+		return LogMath.log2SumExp2(logp, 0, N);
 	}
 
 	private static char[] getAlphabet(String s) {
@@ -0,0 +1,171 @@
+package zx.soft.utils;
+
+/**
+ * Log-space arithmetic shared by the EM and HMM engines.
+ *
+ * Values are primitive doubles, and log(0) is Double.NEGATIVE_INFINITY, which every method accepts and returns
+ * where appropriate. Methods named log* work with natural logarithms, methods named log2* with base 2
+ * logarithms (as used by the distributed HMM EM).
+ *
+ * The exact methods factor out the maximum before exponentiating, so they neither overflow nor lose the larger
+ * terms to underflow. fastLogAdd and fastLog2Add replace the exp/log pair by a lookup in a precomputed table of
+ * log(1 + e^-d); see their docs for the error bound.
+ */
+public class LogMath {
+
+	public static final double LOG_ZERO = Double.NEGATIVE_INFINITY;
+
+	public static final double LN2 = Math.log(2);
+
+	// log(1 + e^-d) is below 2^-52 (so adding it to log(x) changes nothing relevant) for d beyond this.
+	private static final double FAST_LOG_ADD_CUTOFF = 36.0;
+	private static final int FAST_LOG_ADD_STEPS_PER_UNIT = 256;
+	private static final double[] FAST_LOG_ADD_TABLE = makeFastLogAddTable();
+
+	/**
+	 * Returns log(x + y) given log(x) and log(y).
+	 */
+	public static double logAdd(double logX, double logY) {
+		if (logX < logY) {
+			double temp = logX;
+			logX = logY;
+			logY = temp;
+		}
+
+		if (logY == LOG_ZERO) {
+			return logX;
+		}
+
+		return logX + Math.log1p(Math.exp(logY - logX));
+	}
+
+	/**
+	 * Returns log(sum of e^logValues[i]).
+	 */
+	public static double logSumExp(double[] logValues) {
+		return logSumExp(logValues, 0, logValues.length);
+	}
+
+	/**
+	 * Returns log(sum of e^logValues[i]) over logValues[offset..offset+length).
+	 */
+	public static double logSumExp(double[] logValues, int offset, int length) {
+		double max = max(logValues, offset, length);
+		if (max == LOG_ZERO || max == Double.POSITIVE_INFINITY) {
+			return max;
+		}
+
+		double sum = 0.0;
+		for (int i = offset; i < offset + length; i++) {
+			sum += Math.exp(logValues[i] - max);
+		}
+
+		return max + Math.log(sum);
+	}
+
+	/**
+	 * Returns log2(x + y) given log2(x) and log2(y).
+	 */
+	public static double log2Add(double log2X, double log2Y) {
+		if (log2X < log2Y) {
+			double temp = log2X;
+			log2X = log2Y;
+			log2Y = temp;
+		}
+
+		if (log2Y == LOG_ZERO) {
+			return log2X;
+		}
+
+		return log2X + Math.log1p(exp2(log2Y - log2X)) / LN2;
+	}
+
+	/**
+	 * Returns log2(sum of 2^log2Values[i]).
+	 */
+	public static double log2SumExp2(double[] log2Values) {
+		return log2SumExp2(log2Values, 0, log2Values.length);
+	}
+
+	/**
+	 * Returns log2(sum of 2^log2Values[i]) over log2Values[offset..offset+length).
+	 */
+	public static double log2SumExp2(double[] log2Values, int offset, int length) {
+		double max = max(log2Values, offset, length);
+		if (max == LOG_ZERO || max == Double.POSITIVE_INFINITY) {
+			return max;
+		}
+
+		double sum = 0.0;
+		for (int i = offset; i < offset + length; i++) {
+			sum += exp2(log2Values[i] - max);
+		}
+
+		return max + log2(sum);
+	}
+
+	/**
+	 * Returns an approximation of log(x + y) given log(x) and log(y), with an absolute error below 5e-7.
+	 * The correction term log(1 + e^-d), d = |log(x) - log(y)|, is interpolated linearly in a table with a step
+	 * of 1/256, whose error is at most step^2 / 8 * max|f''| = step^2 / 32.
+	 */
+	public static double fastLogAdd(double logX, double logY) {
+		if (logX < logY) {
+			double temp = logX;
+			logX = logY;
+			logY = temp;
+		}
+
+		if (logY == LOG_ZERO) {
+			return logX;
+		}
+
+		double d = logX - logY;
+		if (!(d < FAST_LOG_ADD_CUTOFF)) { // Also true for NaN, which must not be turned into a table index.
+			return Double.isNaN(d) ? Double.NaN : logX;
+		}
+
+		double position = d * FAST_LOG_ADD_STEPS_PER_UNIT;
+		int i = (int) position;
+		double fraction = position - i;
+		return logX + FAST_LOG_ADD_TABLE[i] + fraction * (FAST_LOG_ADD_TABLE[i + 1] - FAST_LOG_ADD_TABLE[i]);
+	}
+
+	/**
+	 * Returns an approximation of log2(x + y) given log2(x) and log2(y), with an absolute error below 7.5e-7
+	 * (the error of fastLogAdd divided by ln 2).
+	 */
+	public static double fastLog2Add(double log2X, double log2Y) {
+		return fastLogAdd(log2X * LN2, log2Y * LN2) / LN2;
+	}
+
+	public static double log2(double x) {
+		return Math.log(x) / LN2;
+	}
+
+	public static double exp2(double log2X) {
+		return Math.exp(log2X * LN2);
+	}
+
+	private static double max(double[] values, int offset, int length) {
+		double max = LOG_ZERO;
+		for (int i = offset; i < offset + length; i++) {
+			if (values[i] > max) {
+				max = values[i];
+			}
+		}
+
+		return max;
+	}
+
+	private static double[] makeFastLogAddTable() {
+		int size = (int) (FAST_LOG_ADD_CUTOFF * FAST_LOG_ADD_STEPS_PER_UNIT) + 2;
+		double[] table = new double[size];
+		for (int i = 0; i < size; i++) {
+			table[i] = Math.log1p(Math.exp(-(double) i / FAST_LOG_ADD_STEPS_PER_UNIT));
+		}
+
+		return table;
+	}
+
+}
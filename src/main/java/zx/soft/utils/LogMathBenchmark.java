@@ -0,0 +1,127 @@
+package zx.soft.utils;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark of LogMath against the boxed, pow/log based log-add it replaces, plus a check of the
+ * fastLogAdd error bound.
+ *
+ * Every case is run for a number of warm-up rounds (so that the JIT has compiled it) before the timed rounds,
+ * and each case returns a checksum that is printed, so the work cannot be eliminated as dead code.
+ *
+ * Usage: java zx.soft.utils.LogMathBenchmark [numValues] [rounds]
+ */
+public class LogMathBenchmark {
+
+	private static final int WARM_UP_ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int numValues = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		// Base 2 log probabilities in the range of typical HMM posteriors, with some log(0)s.
+		Random random = new Random(42);
+		double[] values = new double[numValues];
+		Double[] boxedValues = new Double[numValues];
+		for (int i = 0; i < numValues; i++) {
+			values[i] = random.nextInt(20) == 0 ? LogMath.LOG_ZERO : -60.0 * random.nextDouble();
+			boxedValues[i] = values[i] == LogMath.LOG_ZERO ? null : values[i];
+		}
+
+		Case[] cases = { new Case("boxed pow/log log-add (old)") {
+			@Override
+			double run(double[] values, Double[] boxedValues) {
+				Double sum = null;
+				for (Double value : boxedValues) {
+					sum = oldCalcLogSumOfLogs(sum, value);
+				}
+
+				return sum;
+			}
+		}, new Case("LogMath.log2Add") {
+			@Override
+			double run(double[] values, Double[] boxedValues) {
+				double sum = LogMath.LOG_ZERO;
+				for (double value : values) {
+					sum = LogMath.log2Add(sum, value);
+				}
+
+				return sum;
+			}
+		}, new Case("LogMath.fastLog2Add") {
+			@Override
+			double run(double[] values, Double[] boxedValues) {
+				double sum = LogMath.LOG_ZERO;
+				for (double value : values) {
+					sum = LogMath.fastLog2Add(sum, value);
+				}
+
+				return sum;
+			}
+		}, new Case("LogMath.log2SumExp2 (array)") {
+			@Override
+			double run(double[] values, Double[] boxedValues) {
+				return LogMath.log2SumExp2(values);
+			}
+		} };
+
+		for (Case benchmarkCase : cases) {
+			for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+				benchmarkCase.run(values, boxedValues);
+			}
+
+			double checksum = 0.0;
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				checksum += benchmarkCase.run(values, boxedValues);
+			}
+			double nanosPerOp = (double) (System.nanoTime() - start) / rounds / numValues;
+
+			System.out.printf("%-32s %8.2f ns/op   (checksum %.6f)%n", benchmarkCase.name, nanosPerOp, checksum / rounds);
+		}
+
+		double maxError = 0.0;
+		for (int i = 0; i + 1 < numValues; i++) {
+			double exact = LogMath.logAdd(values[i], values[i + 1]);
+			double fast = LogMath.fastLogAdd(values[i], values[i + 1]);
+			if (exact != fast) {
+				maxError = Math.max(maxError, Math.abs(exact - fast));
+			}
+		}
+		System.out.printf("fastLogAdd max absolute error: %.3g%n", maxError);
+	}
+
+	private static abstract class Case {
+
+		final String name;
+
+		Case(String name) {
+			this.name = name;
+		}
+
+		abstract double run(double[] values, Double[] boxedValues);
+
+	}
+
+	/**
+	 * The log-add previously used by the HMM EM (StaticUtil.calcLogSumOfLogs), without its per-call print.
+	 */
+	private static Double oldCalcLogSumOfLogs(Double logX, Double logY) {
+		if (logX == null && logY == null) {
+			return null;
+		} else if (logX == null) {
+			return logY;
+		} else if (logY == null) {
+			return logX;
+		}
+
+		if (logX >= 0 || logY >= 0) {
+			return Math.log(Math.pow(2, logX) + Math.pow(2, logY)) / Math.log(2);
+		}
+
+		double logZ = Math.max(logX, logY) * -1.0;
+		double scaledSum = Math.pow(2, logX + logZ) + Math.pow(2, logY + logZ);
+		return Math.log(scaledSum) / Math.log(2) - logZ;
+	}
+
+}
@@ -0,0 +1,93 @@
+package edu.dartmouth.hmmem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks CheckpointedForwardBackward against LogForwardBackward on random sparse models.
+ */
+public class CheckpointedForwardBackwardTest {
+
+	private static final double TOLERANCE = 1e-9;
+
+	/**
+	 * Accumulates sequences of several lengths, from one position to many checkpoint segments, with both
+	 * kernels.
+	 */
+	@Test
+	public void matchesLogKernel() {
+		Random random = new Random(13);
+		HmmModel model = RandomHmm.model(random, 8, 30, 0.4);
+		ForwardBackward logKernel = new LogForwardBackward(model);
+		ForwardBackward checkpointedKernel = new CheckpointedForwardBackward(model);
+		ExpectedCounts expected = new ExpectedCounts(model);
+		ExpectedCounts actual = new ExpectedCounts(model);
+
+		for (int length : new int[] { 1, 2, 17, 500, 3000 }) {
+			int[] observations = RandomHmm.sample(random, model, length);
+			logKernel.accumulate(observations, expected);
+			checkpointedKernel.accumulate(observations, actual);
+		}
+
+		RandomHmm.assertCountsEqual(expected, actual, TOLERANCE);
+	}
+
+	/**
+	 * A sequence of probability 0 is recognized from the log space recomputation of the column that sums to 0,
+	 * and adds nothing.
+	 */
+	@Test
+	public void zeroProbabilitySequenceAddsNothing() {
+		HmmModel model = tinyModel();
+		ForwardBackward checkpointedKernel = new CheckpointedForwardBackward(model);
+		ExpectedCounts counts = new ExpectedCounts(model);
+
+		// s1 cannot follow s1, and only s1 emits w1.
+		int[] observations = encode(model, "w2", "w1", "w1", "w2");
+		assertEquals(Double.NEGATIVE_INFINITY, checkpointedKernel.accumulate(observations, counts), 0.0);
+		assertEquals(0, counts.getNumSequences());
+		assertEquals(0.0, counts.getLogAlpha(), 0.0);
+		RandomHmm.assertCountsEqual(new ExpectedCounts(model), counts, 0.0);
+	}
+
+	/**
+	 * A column that underflows although the sequence has non-zero probability is an error.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void underflowingColumnFails() {
+		HmmModel model = tinyModel();
+
+		// P(w0|s0) = 2^-1100 underflows in linear space.
+		new CheckpointedForwardBackward(model).accumulate(encode(model, "w2", "w0"), new ExpectedCounts(model));
+	}
+
+	/**
+	 * Returns a model in which s0 moves to s0 or s1, s1 moves to s0, s0 emits w2 and, with probability 2^-1100,
+	 * w0, and s1 emits w1.
+	 */
+	private static HmmModel tinyModel() {
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		transLogProbMap.put(new StringPair(RandomHmm.START_STATE, "s0"), 0.0);
+		transLogProbMap.put(new StringPair("s0", "s0"), -1.0);
+		transLogProbMap.put(new StringPair("s0", "s1"), -1.0);
+		transLogProbMap.put(new StringPair("s1", "s0"), 0.0);
+
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+		emisLogProbMap.put(new StringPair("s0", "w0"), -1100.0);
+		emisLogProbMap.put(new StringPair("s0", "w2"), 0.0);
+		emisLogProbMap.put(new StringPair("s1", "w1"), 0.0);
+
+		return HmmModel.fromLogProbMaps(RandomHmm.START_STATE, transLogProbMap, emisLogProbMap);
+	}
+
+	private static int[] encode(HmmModel model, String... tokens) {
+		return model.encodeObservationSequence(Arrays.asList(tokens));
+	}
+
+}
@@ -0,0 +1,156 @@
+package edu.dartmouth.hmmem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.junit.Test;
+
+/**
+ * Checks the raw Comparator of EMParameterKey against compareTo, and that all keys of a state of a model hash and
+ * partition together, on random keys whose ids straddle the vint size boundaries.
+ */
+public class EMParameterKeyTest {
+
+	private static final int[] IDS = { -1, 0, 1, 112, 127, 128, 255, 256, 65535, 65536, 1 << 24,
+			Integer.MAX_VALUE };
+	private static final int[] SEEDS = { 0, 1, 2, 127, 128, 100000 };
+	private static final char[] TYPES = { EMModelParameter.PARAMETER_TYPE_TRANSITION,
+			EMModelParameter.PARAMETER_TYPE_EMISSION, EMModelParameter.TYPE_ALPHA };
+
+	@Test
+	public void comparatorIsRegistered() {
+		assertTrue(WritableComparator.get(EMParameterKey.class) instanceof EMParameterKey.Comparator);
+	}
+
+	@Test
+	public void serializationRoundTrips() throws IOException {
+		Random random = new Random(20);
+		for (int n = 0; n < 1000; n++) {
+			EMParameterKey key = randomKey(random);
+			byte[] bytes = serialize(key, 0);
+
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(bytes, bytes.length);
+			EMParameterKey copy = new EMParameterKey();
+			copy.readFields(in);
+
+			assertEquals(key, copy);
+			assertEquals(key.getParameterType(), copy.getParameterType());
+		}
+	}
+
+	@Test
+	public void comparatorAgreesWithCompareTo() throws IOException {
+		Random random = new Random(21);
+		EMParameterKey.Comparator comparator = new EMParameterKey.Comparator();
+
+		for (int n = 0; n < 20000; n++) {
+			EMParameterKey key1 = randomKey(random);
+			// Equal and nearly equal keys too, which differ only in their last fields.
+			EMParameterKey key2 = n % 4 == 0 ? copyOf(key1) : n % 4 == 1 ? withToId(key1, pick(random, IDS))
+					: randomKey(random);
+
+			// The keys are serialized behind a few bytes of other records, as in a sort buffer.
+			int offset1 = random.nextInt(4);
+			int offset2 = random.nextInt(4);
+			byte[] bytes1 = serialize(key1, offset1);
+			byte[] bytes2 = serialize(key2, offset2);
+
+			int expected = Integer.signum(key1.compareTo(key2));
+			assertEquals(key1 + " vs " + key2, expected, Integer.signum(comparator.compare(bytes1, offset1,
+					bytes1.length - offset1, bytes2, offset2, bytes2.length - offset2)));
+			assertEquals(key2 + " vs " + key1, -expected, Integer.signum(comparator.compare(bytes2, offset2,
+					bytes2.length - offset2, bytes1, offset1, bytes1.length - offset1)));
+		}
+	}
+
+	@Test
+	public void keysOfAStateHashAndPartitionTogether() {
+		Random random = new Random(22);
+		HashPartitioner<EMParameterKey, DoubleWritable> hashPartitioner =
+				new HashPartitioner<EMParameterKey, DoubleWritable>();
+		MaximizationPartitioner maximizationPartitioner = new MaximizationPartitioner();
+		maximizationPartitioner.configure(new JobConf());
+		DoubleWritable value = new DoubleWritable();
+
+		for (int seed : SEEDS) {
+			for (int fromId : IDS) {
+				EMParameterKey first = key(seed, TYPES[0], fromId, 0);
+				for (int n = 0; n < 20; n++) {
+					// Only transitions from the start state have fromId -1; no state -1 emits.
+					char type = fromId == -1 ? EMModelParameter.PARAMETER_TYPE_TRANSITION : pick(random, TYPES);
+					EMParameterKey key = key(seed, type, fromId, pick(random, IDS));
+					assertEquals(key.toString(), first.hashCode(), key.hashCode());
+					for (int numPartitions : new int[] { 1, 7, 64 }) {
+						assertEquals(key.toString(), hashPartitioner.getPartition(first, value, numPartitions),
+								hashPartitioner.getPartition(key, value, numPartitions));
+						assertEquals(key.toString(), maximizationPartitioner.getPartition(first, value,
+								numPartitions), maximizationPartitioner.getPartition(key, value, numPartitions));
+					}
+				}
+			}
+		}
+
+		// The alpha of a model goes with the start state of the model.
+		EMParameterKey alpha = new EMParameterKey();
+		alpha.setAlpha();
+		assertEquals(key(0, EMModelParameter.PARAMETER_TYPE_TRANSITION, -1, 5).hashCode(), alpha.hashCode());
+	}
+
+	private static EMParameterKey randomKey(Random random) {
+		char type = pick(random, TYPES);
+		if (type == EMModelParameter.TYPE_ALPHA) {
+			EMParameterKey key = new EMParameterKey();
+			key.setSeed(pick(random, SEEDS));
+			key.setAlpha();
+			return key;
+		}
+		return key(pick(random, SEEDS), type, pick(random, IDS), pick(random, IDS));
+	}
+
+	private static EMParameterKey key(int seed, char type, int fromId, int toId) {
+		EMParameterKey key = new EMParameterKey(type, fromId, toId);
+		key.setSeed(seed);
+		return key;
+	}
+
+	private static EMParameterKey copyOf(EMParameterKey key) {
+		return key(key.getSeed(), key.getParameterType(), key.getFromId(), key.getToId());
+	}
+
+	private static EMParameterKey withToId(EMParameterKey key, int toId) {
+		return key(key.getSeed(), key.getParameterType(), key.getFromId(), toId);
+	}
+
+	private static int pick(Random random, int[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static char pick(Random random, char[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	/**
+	 * Serializes the key after the given number of filler bytes.
+	 */
+	private static byte[] serialize(EMParameterKey key, int offset) throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		for (int i = 0; i < offset; i++) {
+			out.writeByte(0x7f);
+		}
+		key.write(out);
+		byte[] bytes = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,40 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the beam kernel with a beam too wide to prune anything against LogForwardBackward on random sparse
+ * models.
+ */
+public class ExactKernelEquivalenceTest {
+
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void wideBeamMatchesLogKernel() {
+		Random random = new Random(12);
+		HmmModel model = RandomHmm.model(random, 8, 30, 0.4);
+
+		assertMatchesLogKernel(random, model, new BeamForwardBackward(model, 900.0, 0));
+	}
+
+	/**
+	 * Accumulates sequences of several lengths, from one position to thousands, with both kernels.
+	 */
+	private static void assertMatchesLogKernel(Random random, HmmModel model, ForwardBackward kernel) {
+		ForwardBackward logKernel = new LogForwardBackward(model);
+		ExpectedCounts expected = new ExpectedCounts(model);
+		ExpectedCounts actual = new ExpectedCounts(model);
+
+		for (int length : new int[] { 1, 2, 17, 500, 3000 }) {
+			int[] observations = RandomHmm.sample(random, model, length);
+			logKernel.accumulate(observations, expected);
+			kernel.accumulate(observations, actual);
+		}
+
+		RandomHmm.assertCountsEqual(expected, actual, TOLERANCE);
+	}
+
+}
@@ -0,0 +1,116 @@
+package edu.dartmouth.hmmem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the binary model file and the merge of the reducers' id-coded part files reproduce a random model.
+ */
+public class HmmModelFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writeThenReadRoundTrips() throws IOException {
+		HmmModel model = RandomHmm.model(new Random(30), 12, 200, 0.2);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HmmModelFile.write(model, out);
+		byte[] bytes = out.toByteArray();
+
+		assertModelsEqual(model, HmmModelFile.read(new ByteArrayInputStream(bytes), bytes.length));
+	}
+
+	/**
+	 * Writes the parameters of a model to two part files, split by from state as reducers would, and merges them
+	 * into an empty copy of the model.
+	 */
+	@Test
+	public void mergePartsRebuildsTheModel() throws IOException {
+		HmmModel model = RandomHmm.model(new Random(31), 12, 200, 0.2);
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		Path outputDirPath = new Path(folder.getRoot().getAbsolutePath());
+
+		int numStates = model.getNumStates();
+		for (int part = 0; part < 2; part++) {
+			Path partPath = new Path(outputDirPath, HmmModelFile.PART_FILE_NAME + "-0000" + part
+					+ HmmModelFile.PART_FILE_SUFFIX);
+			try (DataOutputStream out = fs.create(partPath)) {
+				if (part == 0 && model.getStartStateId() == -1) {
+					for (int to = 0; to < numStates; to++) {
+						writeParameter(out, EMModelParameter.PARAMETER_TYPE_TRANSITION, -1, to,
+								model.getStartLogProbs()[to]);
+					}
+				}
+
+				for (int state = part; state < numStates; state += 2) {
+					for (int to = 0; to < numStates; to++) {
+						writeParameter(out, EMModelParameter.PARAMETER_TYPE_TRANSITION, state, to,
+								model.getTransLogProbs()[state * numStates + to]);
+					}
+					for (int tokenId = 0; tokenId < model.getNumTokens(); tokenId++) {
+						writeParameter(out, EMModelParameter.PARAMETER_TYPE_EMISSION, state, tokenId,
+								model.getEmisLogProbs()[tokenId * numStates + state]);
+					}
+				}
+				HmmModelFile.closeParameters(out);
+			}
+		}
+
+		HmmModel merged = HmmModelFile.mergeParts(fs, model.emptyCopy(), outputDirPath);
+		assertModelsEqual(model, merged);
+
+		// The part files are replaced by the binary model file.
+		assertFalse(fs.exists(new Path(outputDirPath, HmmModelFile.PART_FILE_NAME + "-00000"
+				+ HmmModelFile.PART_FILE_SUFFIX)));
+		Path binaryPath = new Path(outputDirPath, HmmModelFile.FILE_NAME);
+		try (InputStream in = fs.open(binaryPath)) {
+			assertModelsEqual(model, HmmModelFile.read(in, fs.getFileStatus(binaryPath).getLen()));
+		}
+	}
+
+	/**
+	 * Writes a parameter as a reducer does, leaving out zero probabilities.
+	 */
+	private static void writeParameter(DataOutputStream out, char parameterType, int fromId, int toId,
+			double logProb) throws IOException {
+		if (logProb != Double.NEGATIVE_INFINITY) {
+			HmmModelFile.writeParameter(out, parameterType, fromId, toId, logProb);
+		}
+	}
+
+	static void assertModelsEqual(HmmModel expected, HmmModel actual) {
+		assertEquals(expected.getStartState(), actual.getStartState());
+		assertEquals(expected.getStartStateId(), actual.getStartStateId());
+
+		assertEquals(expected.getNumStates(), actual.getNumStates());
+		for (int state = 0; state < expected.getNumStates(); state++) {
+			assertEquals(expected.getState(state), actual.getState(state));
+		}
+		assertEquals(expected.getNumTokens(), actual.getNumTokens());
+		for (int tokenId = 0; tokenId < expected.getNumTokens(); tokenId++) {
+			assertEquals(expected.getToken(tokenId), actual.getToken(tokenId));
+		}
+
+		assertArrayEquals(expected.getStartLogProbs(), actual.getStartLogProbs(), 0.0);
+		assertArrayEquals(expected.getTransLogProbs(), actual.getTransLogProbs(), 0.0);
+		assertArrayEquals(expected.getEmisLogProbs(), actual.getEmisLogProbs(), 0.0);
+	}
+
+}
@@ -0,0 +1,132 @@
+package edu.dartmouth.hmmem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Checks that merging the part files of the reducers of a split state's emission buckets normalizes the state's
+ * emissions as a single reducer would have.
+ */
+public class MaximizationPartitionerTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void mergeNormalizesSplitStates() throws IOException {
+		Random random = new Random(40);
+		HmmModel model = RandomHmm.model(random, 12, 200, 0.3);
+		int numStates = model.getNumStates();
+		int numTokens = model.getNumTokens();
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		Path outputDirPath = new Path(folder.getRoot().getAbsolutePath());
+
+		// State 3 is split over 3 buckets, state 7 over 2.
+		int[] splitNumBuckets = new int[numStates];
+		splitNumBuckets[3] = 3;
+		splitNumBuckets[7] = 2;
+
+		// The summed log counts of the emissions of the split states, which their bucket reducers output as they
+		// are.
+		double[] emisLogCounts = new double[numTokens * numStates];
+		for (int i = 0; i < emisLogCounts.length; i++) {
+			emisLogCounts[i] = model.getEmisLogProbs()[i] == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY
+					: LogMath.log2(0.1 + 100.0 * random.nextDouble());
+		}
+
+		// Bucket b of a split state goes to part b, as do the normalized parameters of the unsplit states of part b.
+		for (int part = 0; part < 3; part++) {
+			Path partPath = new Path(outputDirPath, HmmModelFile.PART_FILE_NAME + "-0000" + part
+					+ HmmModelFile.PART_FILE_SUFFIX);
+			try (DataOutputStream out = fs.create(partPath)) {
+				for (int state = 0; state < numStates; state++) {
+					if (part == 0) {
+						for (int to = 0; to < numStates; to++) {
+							writeParameter(out, EMModelParameter.PARAMETER_TYPE_TRANSITION, state, to,
+									model.getTransLogProbs()[state * numStates + to]);
+						}
+					}
+
+					for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+						int offset = tokenId * numStates + state;
+						if (splitNumBuckets[state] > 1 && tokenId % splitNumBuckets[state] == part) {
+							writeParameter(out, EMModelParameter.PARAMETER_TYPE_EMISSION, state, tokenId,
+									emisLogCounts[offset]);
+						} else if (splitNumBuckets[state] == 0 && state % 3 == part) {
+							writeParameter(out, EMModelParameter.PARAMETER_TYPE_EMISSION, state, tokenId,
+									model.getEmisLogProbs()[offset]);
+						}
+					}
+				}
+				if (part == 0 && model.getStartStateId() == -1) {
+					for (int to = 0; to < numStates; to++) {
+						writeParameter(out, EMModelParameter.PARAMETER_TYPE_TRANSITION, -1, to,
+								model.getStartLogProbs()[to]);
+					}
+				}
+				HmmModelFile.closeParameters(out);
+			}
+		}
+
+		HmmModel merged = HmmModelFile.mergeParts(fs, model.emptyCopy(), outputDirPath, splitNumBuckets);
+		double[] mergedEmisLogProbs = merged.getEmisLogProbs();
+
+		for (int state = 0; state < numStates; state++) {
+			if (splitNumBuckets[state] == 0) {
+				for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+					int offset = tokenId * numStates + state;
+					assertEquals(model.getEmisLogProbs()[offset], mergedEmisLogProbs[offset], 0.0);
+				}
+				continue;
+			}
+
+			// The unsplit normalization of the state's counts.
+			double logCountSum = LogMath.LOG_ZERO;
+			for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+				logCountSum = LogMath.log2Add(logCountSum, emisLogCounts[tokenId * numStates + state]);
+			}
+
+			double probSum = 0.0;
+			for (int tokenId = 0; tokenId < numTokens; tokenId++) {
+				int offset = tokenId * numStates + state;
+				double expected = emisLogCounts[offset] - logCountSum;
+				if (expected == Double.NEGATIVE_INFINITY) {
+					assertEquals(expected, mergedEmisLogProbs[offset], 0.0);
+				} else {
+					assertEquals(expected, mergedEmisLogProbs[offset], TOLERANCE);
+				}
+				probSum += LogMath.exp2(mergedEmisLogProbs[offset]);
+			}
+			assertEquals("emissions of state " + state, 1.0, probSum, TOLERANCE);
+		}
+
+		assertArrayEquals(model.getStartLogProbs(), merged.getStartLogProbs(), 0.0);
+		assertArrayEquals(model.getTransLogProbs(), merged.getTransLogProbs(), 0.0);
+	}
+
+	/**
+	 * Writes a parameter as a reducer does, leaving out zero probabilities.
+	 */
+	private static void writeParameter(DataOutputStream out, char parameterType, int fromId, int toId,
+			double logProb) throws IOException {
+		if (logProb != Double.NEGATIVE_INFINITY) {
+			HmmModelFile.writeParameter(out, parameterType, fromId, toId, logProb);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package edu.dartmouth.hmmem;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks ParallelForwardBackward against ScaledForwardBackward on random sparse models, with segments short
+ * enough that most sequences are split.
+ */
+public class ParallelForwardBackwardTest {
+
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void matchesScaledKernel() {
+		Random random = new Random(14);
+		HmmModel model = RandomHmm.model(random, 8, 30, 0.4);
+
+		assertMatchesScaledKernel(random, model, new ParallelForwardBackward(model, 4, 10));
+	}
+
+	@Test
+	public void kernelsOfDifferentThreadCountsMatchScaledKernel() {
+		Random random = new Random(15);
+		HmmModel model = RandomHmm.model(random, 8, 30, 0.4);
+
+		assertMatchesScaledKernel(random, model, new ParallelForwardBackward(model, 2, 10));
+		assertMatchesScaledKernel(random, model, new ParallelForwardBackward(model, 5, 10));
+	}
+
+	/**
+	 * Accumulates sequences of several lengths, from one too short to split to one of many long segments, with
+	 * both kernels.
+	 */
+	private static void assertMatchesScaledKernel(Random random, HmmModel model, ForwardBackward kernel) {
+		ForwardBackward scaledKernel = new ScaledForwardBackward(model);
+		ExpectedCounts expected = new ExpectedCounts(model);
+		ExpectedCounts actual = new ExpectedCounts(model);
+
+		for (int length : new int[] { 5, 20, 40, 101, 2000 }) {
+			int[] observations = RandomHmm.sample(random, model, length);
+			scaledKernel.accumulate(observations, expected);
+			kernel.accumulate(observations, actual);
+		}
+
+		RandomHmm.assertCountsEqual(expected, actual, TOLERANCE);
+	}
+
+}
@@ -0,0 +1,107 @@
+package edu.dartmouth.hmmem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import zx.soft.utils.LogMath;
+
+/**
+ * Random sparse models and sequences sampled from them for the kernel tests, and comparison of expected counts.
+ */
+final class RandomHmm {
+
+	static final String START_STATE = "#";
+
+	private RandomHmm() {
+	}
+
+	/**
+	 * Returns a model with the given numbers of states and tokens, in which every transition and emission is
+	 * present with the given probability. State s always moves to state s + 1 and emits token s (modulo the
+	 * number of tokens), so that every state can be left and every token emitted.
+	 */
+	static HmmModel model(Random random, int numStates, int numTokens, double density) {
+		Map<StringPair, Double> transLogProbMap = new HashMap<StringPair, Double>();
+		Map<StringPair, Double> emisLogProbMap = new HashMap<StringPair, Double>();
+
+		for (int to = 0; to < numStates; to++) {
+			transLogProbMap.put(new StringPair(START_STATE, "s" + to), LogMath.log2(random.nextDouble()));
+		}
+		for (int from = 0; from < numStates; from++) {
+			for (int to = 0; to < numStates; to++) {
+				if (to == (from + 1) % numStates || random.nextDouble() < density) {
+					transLogProbMap.put(new StringPair("s" + from, "s" + to), LogMath.log2(random.nextDouble()));
+				}
+			}
+		}
+		for (int state = 0; state < numStates; state++) {
+			for (int token = 0; token < numTokens; token++) {
+				if (token % numStates == state || random.nextDouble() < density) {
+					emisLogProbMap.put(new StringPair("s" + state, "w" + token), LogMath.log2(random.nextDouble()));
+				}
+			}
+		}
+
+		StaticUtil.normalizeLogProbMap(transLogProbMap);
+		StaticUtil.normalizeLogProbMap(emisLogProbMap);
+		return HmmModel.fromLogProbMaps(START_STATE, transLogProbMap, emisLogProbMap);
+	}
+
+	/**
+	 * Samples a sequence of token ids of the given length from the model, so that it has non-zero probability.
+	 */
+	static int[] sample(Random random, HmmModel model, int length) {
+		int numStates = model.getNumStates();
+		double[] transProbs = model.getTransProbs();
+		double[] emisProbs = model.getEmisProbs();
+
+		int[] observations = new int[length];
+		int state = draw(random, model.getStartProbs(), 0, 1, numStates);
+		for (int i = 0; i < length; i++) {
+			observations[i] = draw(random, emisProbs, state, numStates, model.getNumTokens());
+			state = draw(random, transProbs, state * numStates, 1, numStates);
+		}
+		return observations;
+	}
+
+	/**
+	 * Draws an index from the distribution probs[offset + index * stride], index < size.
+	 */
+	private static int draw(Random random, double[] probs, int offset, int stride, int size) {
+		double target = random.nextDouble();
+		double sum = 0.0;
+		int last = 0;
+		for (int index = 0; index < size; index++) {
+			double prob = probs[offset + index * stride];
+			if (prob > 0.0) {
+				sum += prob;
+				last = index;
+				if (target < sum) {
+					return index;
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Asserts that the counts are equal up to the given relative tolerance.
+	 */
+	static void assertCountsEqual(ExpectedCounts expected, ExpectedCounts actual, double tolerance) {
+		assertArrayEquals("start", expected.getStartCounts(), actual.getStartCounts(), tolerance);
+		assertArrayEquals("transition", expected.getTransCounts(), actual.getTransCounts(), tolerance);
+		assertArrayEquals("emission", expected.getEmisCounts(), actual.getEmisCounts(), tolerance);
+		assertEquals(expected.getLogAlpha(), actual.getLogAlpha(), tolerance * Math.abs(expected.getLogAlpha()));
+	}
+
+	private static void assertArrayEquals(String name, double[] expected, double[] actual, double tolerance) {
+		assertEquals(name + " length", expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(name + " count " + i, expected[i], actual[i], tolerance * Math.max(Math.abs(expected[i]), 1.0));
+		}
+	}
+
+}